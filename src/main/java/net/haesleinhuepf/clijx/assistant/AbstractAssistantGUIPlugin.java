@@ -6,6 +6,7 @@ import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
 import ij.gui.*;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import ij.plugin.PlugIn;
@@ -17,6 +18,9 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.HasAuthor;
 import net.haesleinhuepf.clij2.utilities.HasLicense;
 import net.haesleinhuepf.clijx.assistant.annotation.AnnotationTool;
+import net.haesleinhuepf.clijx.assistant.batch.TiledExecutor;
+import net.haesleinhuepf.clijx.assistant.batch.BatchRunner;
+import net.haesleinhuepf.clijx.assistant.batch.TimelapsePipeline;
 import net.haesleinhuepf.clijx.assistant.interactive.handcrafted.Crop2D;
 import net.haesleinhuepf.clijx.assistant.interactive.handcrafted.Crop3D;
 import net.haesleinhuepf.clijx.assistant.interactive.handcrafted.ExtractChannel;
@@ -34,7 +38,9 @@ import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
 import net.haesleinhuepf.clijx.assistant.services.MenuService;
 import net.haesleinhuepf.clijx.assistant.services.SuggestionService;
 import net.haesleinhuepf.clijx.utilities.AbstractCLIJxPlugin;
+import net.haesleinhuepf.spimcat.io.BufferPool;
 import net.haesleinhuepf.spimcat.io.CLIJxVirtualStack;
+import net.haesleinhuepf.spimcat.io.DeviceMemoryBudget;
 import org.scijava.util.VersionUtils;
 
 import java.awt.*;
@@ -194,29 +200,113 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
     }
 
     protected ClearCLBuffer[] result = null;
+
+    // arguments and source versions of the last computation
+    private ParameterContainer former_fingerprint = null;
+    // set by refresh() if the result was still up to date; followers then don't need to recompute either
+    boolean output_unchanged = false;
+    // set by refresh() if it stopped for newer parameters before all channels were computed; nothing is published
+    boolean refresh_incomplete = false;
+    // filled by refresh() while the RefreshScheduler runs it
+    RefreshRecord refresh_record = null;
+
     public synchronized void refresh()
     {
+        output_unchanged = false;
+        refresh_incomplete = false;
         if (plugin == null) {
             return;
         }
+        RefreshRecord record = refresh_record != null ? refresh_record : new RefreshRecord(this);
 
         System.out.println("Updating from " + Arrays.toString(my_sources));
 
+        record.push_start_ns = System.nanoTime();
         ClearCLBuffer[][] pushed = CLIJxVirtualStack.imagePlusesToBuffers(my_sources);
+        for (int s = 0; s < my_sources.length; s++) {
+            if (!(my_sources[s].getStack() instanceof CLIJxVirtualStack)) {
+                for (ClearCLBuffer buffer : pushed[s]) {
+                    record.bytes_pushed += buffer.getSizeInBytes();
+                }
+            }
+        }
+        record.push_ns = System.nanoTime() - record.push_start_ns;
 
         String[] parameters = plugin.getParameterHelpText().split(",");
+        Object[] new_args = readArguments(parameters, pushed);
+        if (new_args == null) {
+            return;
+        }
+        args = new_args;
+        int result_index = getResultIndex(parameters);
+
+        plugin.setArgs(args);
+        checkResult();
+        if (result == null) {
+            result = createOutputBufferFromSource(pushed[0]);
+        } else {
+            // it might have been evicted by the DeviceMemoryBudget; the content gets overwritten anyway
+            DeviceMemoryBudget.getInstance().makeResident(result, false);
+        }
+        args[result_index] = result[0]; // todo: potentially store the whole array here
 
+        ParameterContainer fingerprint = new ParameterContainer(new Object[][]{args, AssistantGUIPluginRegistry.getInstance().getSourceVersions(this)});
+        if (fingerprint.equals(former_fingerprint) && my_target != null) {
+            // same parameters, same input buffers with the same content and the same output buffer
+            System.out.println("Skipping " + getName() + ": inputs and parameters unchanged");
+            output_unchanged = true;
+            cleanup(my_sources, pushed);
+            return;
+        }
+
+        if (isRefreshCancelled()) {
+            // newer parameters arrived meanwhile; the next refresh uses those
+            refresh_incomplete = true;
+            cleanup(my_sources, pushed);
+            return;
+        }
 
+        boolean completed;
+        record.lock_wait_start_ns = System.nanoTime();
+        synchronized (CLIJx.getInstance()) {
+            // executeCL() locks again; the kernel time shouldn't include waiting for other branches
+            record.kernel_start_ns = System.nanoTime();
+            record.lock_wait_ns = record.kernel_start_ns - record.lock_wait_start_ns;
+            completed = executeCL(pushed, new ClearCLBuffer[][]{result});
+            record.kernel_ns = System.nanoTime() - record.kernel_start_ns;
+        }
+        cleanup(my_sources, pushed);
+        if (!completed) {
+            // some channels still hold former content; neither remember nor publish this result
+            refresh_incomplete = true;
+            return;
+        }
+        former_fingerprint = fingerprint;
+
+        record.render_start_ns = System.nanoTime();
+        setTarget(CLIJxVirtualStack.bufferToImagePlus(result));
+        DeviceMemoryBudget.getInstance().setRecomputeCallback(result, this::recomputeDroppedResult);
+        my_target.setTitle(AssistantUtilities.niceNameWithoutDimShape(this.getName()) + " of " + my_sources[0].getTitle());
+        enhanceContrast();
+        record.render_ns = System.nanoTime() - record.render_start_ns;
+        if (my_target.getStack() instanceof CLIJxVirtualStack) {
+            record.bytes_pulled = ((CLIJxVirtualStack) my_target.getStack()).getPulledBytes();
+        }
+
+    }
+
+    // reads parameters from the dialog or the defaults; returns null if a number can't be parsed. Images are left
+    // out if pushed is null.
+    private Object[] readArguments(String[] parameters, ClearCLBuffer[][] pushed) {
         Object[] default_values = null;
         if (plugin instanceof AbstractCLIJPlugin) {
             default_values = ((AbstractCLIJPlugin) plugin).getDefaultValues();
         }
-        args = new Object[parameters.length];
+        Object[] args = new Object[parameters.length];
 
         int boolean_count = 0;
         int number_count = 0;
         int string_count = 0;
-        int result_index = -1;
 
         if (parameters.length > 0 && parameters[0].length() > 0) {
             // skip first two parameters because they are images
@@ -233,9 +323,7 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
 
                 if (parameterType.compareTo("Image") == 0) {
                     // no choice
-                    if (byRef || parameterName.contains("destination")) {
-                        result_index = i;
-                    } else {
+                    if (!(byRef || parameterName.contains("destination")) && pushed != null) {
                         args[i] = pushed[i][0]; // todo: potentially store the whole array here
                     }
                 } else if (parameterType.compareTo("String") == 0) {
@@ -272,29 +360,159 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
                         try {
                             args[i] = Double.parseDouble(((TextField)registered_dialog.getNumericFields().get(number_count)).getText());
                         } catch (NumberFormatException e) {
-                            return;
+                            return null;
                         }
                         number_count++;
                     }
                 }
             }
         }
+        return args;
+    }
+
+    private int getResultIndex(String[] parameters) {
+        for (int i = 0; i < parameters.length; i++) {
+            String[] parameterParts = parameters[i].trim().split(" ");
+            boolean byRef = parameterParts[0].compareTo("ByRef") == 0;
+            String parameterType = byRef ? parameterParts[1] : parameterParts[0];
+            String parameterName = parameterParts[byRef ? 2 : 1];
+            if (parameterType.compareTo("Image") == 0 && (byRef || parameterName.contains("destination"))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // called by the DeviceMemoryBudget when the dropped result is needed again, on any thread; the RefreshScheduler
+    // recomputes it
+    private void recomputeDroppedResult() {
+        former_fingerprint = null;
+        setTargetInvalid();
+    }
+
+    /**
+     * Computes this node on downsampled sources while parameters are being edited. Resolution dependent parameters
+     * such as sigma and radius are scaled down accordingly. The preview is enlarged into the result and shown until
+     * the full resolution refresh replaces it.
+     * <p>
+     * The sources may also be restricted to a slab of planes around the displayed one; then only that slab of the
+     * result is overwritten.
+     *
+     * @param sources downsampled sources, one array of channels per source
+     * @param preview downsampled result of the former preview or null
+     * @param slab_start first plane of the slab within the full stack, 0 if the sources contain all planes
+     * @return the downsampled result, or null if the node can't be previewed
+     */
+    synchronized ClearCLBuffer[] refreshPreview(ClearCLBuffer[][] sources, ClearCLBuffer[] preview, int factor, int slab_start) {
+        if (plugin == null || result == null || my_target == null || !Boolean.TRUE.equals(input_output_sizes_equal) || !supportsPreview()) {
+            return null;
+        }
+        if (AssistantGUIPluginRegistry.getInstance().isValid(my_target)) {
+            // the full resolution result is there already
+            return null;
+        }
+
+        String[] parameters = plugin.getParameterHelpText().split(",");
+        Object[] preview_args = readArguments(parameters, sources);
+        int result_index = getResultIndex(parameters);
+        if (preview_args == null || result_index < 0) {
+            return null;
+        }
+        scaleResolutionDependentParameters(plugin.getName(), parameters, preview_args, factor);
+
+        CLIJx clijx = CLIJx.getInstance();
+        synchronized (clijx) {
+            plugin.setArgs(preview_args);
+            try {
+                if (preview == null || preview.length != result.length || !Arrays.equals(preview[0].getDimensions(), sources[0][0].getDimensions())) {
+                    preview = new ClearCLBuffer[result.length];
+                    for (int c = 0; c < preview.length; c++) {
+                        preview[c] = plugin.createOutputBufferFromSource(sources[0][0]);
+                    }
+                }
+                preview_args[result_index] = preview[0];
+                executeCLUnsynchronized(concat(sources, preview), preview_args);
+            } finally {
+                plugin.setArgs(args);
+            }
+
+            // the planes outside a slab keep their content
+            DeviceMemoryBudget.getInstance().makeResident(result, preview[0].getDepth() != result[0].getDepth());
+            for (int c = 0; c < result.length; c++) {
+                if (preview[c].getDepth() == result[c].getDepth()) {
+                    if (factor == 1) {
+                        clijx.copy(preview[c], result[c]);
+                    } else if (result[c].getDimension() == 3) {
+                        clijx.downsample3D(preview[c], result[c], factor, factor, 1.0);
+                    } else {
+                        clijx.downsample2D(preview[c], result[c], factor, factor);
+                    }
+                } else {
+                    ClearCLBuffer enlarged = preview[c];
+                    if (factor > 1) {
+                        enlarged = clijx.create(new long[]{result[c].getWidth(), result[c].getHeight(), preview[c].getDepth()}, result[c].getNativeType());
+                        clijx.downsample3D(preview[c], enlarged, factor, factor, 1.0);
+                    }
+                    clijx.paste3D(enlarged, result[c], 0, 0, slab_start);
+                    if (enlarged != preview[c]) {
+                        enlarged.close();
+                    }
+                }
+            }
+        }
+        // the result doesn't correspond to the parameters anymore
+        former_fingerprint = null;
 
+        if (my_target.getStack() instanceof CLIJxVirtualStack) {
+            ((CLIJxVirtualStack) my_target.getStack()).invalidateCache();
+        }
+        my_target.updateAndDraw();
+        return preview;
+    }
 
-        plugin.setArgs(args);
-        checkResult();
-        if (result == null) {
-            result = createOutputBufferFromSource(pushed[0]);
+    // halo in x, y and z this node needs with the parameters currently entered in the dialog
+    int[] getPreviewHalo() {
+        Object[] current = plugin == null ? null : readArguments(plugin.getParameterHelpText().split(","), null);
+        if (current == null) {
+            return new int[3];
         }
-        args[result_index] = result[0]; // todo: potentially store the whole array here
+        return TiledExecutor.getHalo(plugin, current);
+    }
 
-        executeCL(pushed, new ClearCLBuffer[][]{result});
-        cleanup(my_sources, pushed);
+    /**
+     * Nodes with their own refresh() can't be computed on downsampled images generically.
+     */
+    protected boolean supportsPreview() {
+        try {
+            return getClass().getMethod("refresh").getDeclaringClass() == AbstractAssistantGUIPlugin.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
 
-        setTarget(CLIJxVirtualStack.bufferToImagePlus(result));
-        my_target.setTitle(AssistantUtilities.niceNameWithoutDimShape(this.getName()) + " of " + my_sources[0].getTitle());
-        enhanceContrast();
+    // images are downsampled in X and Y only
+    private static void scaleResolutionDependentParameters(String plugin_name, String[] parameters, Object[] args, int factor) {
+        for (int i = 0; i < parameters.length; i++) {
+            String[] parameterParts = parameters[i].trim().split(" ");
+            String parameterName = parameterParts[parameterParts.length - 1].toLowerCase();
+            if (args[i] instanceof Number && (parameterName.contains("sigma") || parameterName.contains("radius")) && !parameterName.endsWith("z")) {
+                double value = ((Number) args[i]).doubleValue();
+                if (MemoizedFitnessFunction.isIntegerParameter(plugin_name + "_" + parameterParts[parameterParts.length - 1])) {
+                    // read with asInteger(): round instead of truncating and keep a nonzero radius nonzero
+                    double scaled = Math.round(value / factor);
+                    args[i] = value != 0 && scaled == 0 ? Math.signum(value) : scaled;
+                } else {
+                    args[i] = value / factor;
+                }
+            }
+        }
+    }
 
+    private static ClearCLBuffer[][] concat(ClearCLBuffer[][] sources, ClearCLBuffer[] target) {
+        ClearCLBuffer[][] whole = new ClearCLBuffer[sources.length + 1][];
+        System.arraycopy(sources, 0, whole, 0, sources.length);
+        whole[sources.length] = target;
+        return whole;
     }
 
     protected void checkResult() {
@@ -332,8 +550,10 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             }
 
             if (!equal_dimensions) {
+                DeviceMemoryBudget.getInstance().unregister(result);
+                BufferPool pool = BufferPool.getInstance(CLIJx.getInstance());
                 for (ClearCLBuffer buffer : result) {
-                    buffer.close();
+                    pool.release(buffer);
                 }
                 System.out.println("Make a new result");
                 result = null;
@@ -385,7 +605,10 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
     }*/
 
 
-    protected void executeCL(ClearCLBuffer[][] whole_input, ClearCLBuffer[][] whole_output) {
+    /**
+     * @return false if the computation stopped before all channels were processed because newer parameters arrived
+     */
+    protected boolean executeCL(ClearCLBuffer[][] whole_input, ClearCLBuffer[][] whole_output) {
         ClearCLBuffer[][] whole = new ClearCLBuffer[whole_output.length + whole_input.length][];
         for (int i = 0; i < whole_input.length; i ++) {
             whole[i] = whole_input[i];
@@ -393,14 +616,30 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
         for (int i = 0; i < whole_output.length; i ++) {
             whole[i + whole_input.length] = whole_output[i];
         }
-        executeCL(whole);
+        return executeCL(whole);
+    }
+
+    protected boolean executeCL(ClearCLBuffer[][] whole) {
+        // branches of the graph may be refreshed in parallel; kernel dispatch on the shared context is serialized
+        synchronized (CLIJx.getInstance()) {
+            return executeCLUnsynchronized(whole);
+        }
     }
 
-    protected void executeCL(ClearCLBuffer[][] whole) {
+    private boolean executeCLUnsynchronized(ClearCLBuffer[][] whole) {
+        return executeCLUnsynchronized(whole, args);
+    }
+
+    private boolean executeCLUnsynchronized(ClearCLBuffer[][] whole, Object[] args) {
+        boolean completed = true;
         if (plugin instanceof CLIJOpenCLProcessor) {
             if (my_sources[0].getNChannels() > 1) {
                 int number_of_channels = my_sources[0].getNChannels();
                 for (int c = 0; c < number_of_channels; c++) {
+                    if (c > 0 && isRefreshCancelled()) {
+                        completed = false;
+                        break;
+                    }
                     for (int i = 0; i < whole.length; i++) {
                         if (whole[i].length > c) {
                             args[i] = whole[i][c];
@@ -422,14 +661,31 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
                 ((CLIJOpenCLProcessor) plugin).executeCL();
             }
         }
+        return completed;
     }
 
 
+    /**
+     * Refreshes run on the scheduler thread and may be overtaken by newer parameter edits. This allows long
+     * refreshes to stop cooperatively; the node is recomputed with the newest parameters afterwards.
+     */
+    protected boolean isRefreshCancelled() {
+        return AssistantGUIPluginRegistry.getInstance().isPending(this);
+    }
+
     protected ClearCLBuffer[] createOutputBufferFromSource(ClearCLBuffer[] pushed) {
         CLIJx clijx = CLIJx.getInstance();
         System.out.println("PUSHED[0]: " + pushed[0]);
         System.out.println("PUSHED[0] class: " + pushed[0].getClass());
-        ClearCLBuffer result = plugin.createOutputBufferFromSource(pushed[0]);
+        DeviceMemoryBudget.getInstance().enforce(pushed[0].getSizeInBytes() * pushed.length);
+        ClearCLBuffer result;
+        try {
+            result = plugin.createOutputBufferFromSource(pushed[0]);
+        } catch (RuntimeException e) {
+            System.out.println("Allocation failed, evicting other results: " + e.getMessage());
+            DeviceMemoryBudget.getInstance().evictAll();
+            result = plugin.createOutputBufferFromSource(pushed[0]);
+        }
         if (input_output_sizes_equal == null) {
             input_output_sizes_equal =
                     pushed[0].getWidth() == result.getWidth() &&
@@ -444,7 +700,7 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             ClearCLBuffer[] output = new ClearCLBuffer[pushed.length];
             output[0] = result;
             for (int i = 1; i < pushed.length; i ++) {
-                output[i] = clijx.create(output[0]);
+                output[i] = BufferPool.getInstance(clijx).lease(output[0]);
             }
 
             return output;
@@ -573,6 +829,7 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
     public void setSources(ImagePlus[] input) {
         my_sources = input;
         my_target = null;
+        AssistantGUIPluginRegistry.getInstance().graphChanged();
     }
 
     public ImagePlus getTarget() {
@@ -590,6 +847,7 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             } else {
                 my_target = result;
             }
+            AssistantGUIPluginRegistry.getInstance().graphChanged();
 
             my_target.show();
             attachMenu(my_target);
@@ -635,6 +893,7 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             //my_target.setLut(my_source.getProcessor().getLut());
         }
         paused = false;
+        former_displayed_z = my_target.getZ();
 
         refreshView();
     }
@@ -901,6 +1160,30 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             new MemoryDisplay().run("");
             IJ.log(CLIJx.getInstance().reportMemory());
         });
+
+        addMenuAction(info,"Refresh statistics", (a) -> {
+            RefreshStatistics.showTable(AssistantGUIPluginRegistry.getInstance().getRefreshRecords());
+        });
+        addMenuAction(info,"Export refresh statistics (CSV)", (a) -> {
+            String filename = new SaveDialog("Save refresh statistics", "refresh_statistics", ".csv").getPath();
+            if (filename != null) {
+                try {
+                    RefreshStatistics.saveCSV(AssistantGUIPluginRegistry.getInstance().getRefreshRecords(), new File(filename));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        addMenuAction(info,"Export refresh trace (Chrome trace JSON)", (a) -> {
+            String filename = new SaveDialog("Save refresh trace", "refresh_trace", ".json").getPath();
+            if (filename != null) {
+                try {
+                    RefreshStatistics.saveChromeTrace(AssistantGUIPluginRegistry.getInstance().getRefreshRecords(), new File(filename));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
         menu.add(info);
 
         // -------------------------------------------------------------------------------------------------------------
@@ -971,8 +1254,51 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
             addMenuAction(more_actions, "Optimize parameters (gradient descent, configurable)", (a) -> {
                 optimize(new GradientDescentOptimizer((int)IJ.getNumber( "Range",6 )), new IJLogger(), true);
             });
+            more_actions.add("-");
+            addMenuAction(more_actions, "Optimize parameters (simplex, parallel on all GPUs)", (a) -> {
+                optimize(new SimplexOptimizer(6, true), new IJLogger(), false);
+            });
+            addMenuAction(more_actions, "Optimize parameters (gradient descent, parallel on all GPUs)", (a) -> {
+                optimize(new GradientDescentOptimizer(6, true), new IJLogger(), false);
+            });
+            addMenuAction(more_actions, "Optimize parameters (gradient descent, batched gradients on all GPUs)", (a) -> {
+                optimize(new GradientDescentOptimizer(6, true, true), new IJLogger(), false);
+            });
         }
 
+        AssistantGUIPlugin[] path = AssistantGUIPluginRegistry.getInstance().getPathToRoot(this);
+        ImagePlus root = path[0].getSource(0);
+        if (root != null && root.getNFrames() > 1) {
+            more_actions.add("-");
+            addMenuAction(more_actions, "Process all time points (pipelined)", (a) -> {
+                String folder = IJ.getDirectory("Output folder");
+                if (folder == null) {
+                    return;
+                }
+                Workflow workflow = getWorkflow();
+                int channel = root.getC();
+                new Thread(() -> {
+                    new TimelapsePipeline(CLIJx.getInstance(), workflow).run(root, channel, new File(folder));
+                }).start();
+            });
+        }
+        more_actions.add("-");
+        addMenuAction(more_actions, "Process folder of images (batch)", (a) -> {
+            String input_folder = IJ.getDirectory("Input folder");
+            if (input_folder == null) {
+                return;
+            }
+            String output_folder = IJ.getDirectory("Output folder");
+            if (output_folder == null) {
+                return;
+            }
+            Workflow workflow = getWorkflow();
+            new Thread(() -> {
+                BatchRunner runner = new BatchRunner(CLIJx.getInstance(), workflow);
+                runner.setLogger(new IJLogger());
+                runner.run(new File(input_folder), new File(output_folder));
+            }).start();
+        });
     }
 
 
@@ -1082,6 +1408,21 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
         });
         registered_dialog = dialog;
 
+        dialog.addWindowListener(new WindowAdapter() {
+            // while parameters are edited, the slab preview is shown; the full volume follows when the dialog is left
+            @Override
+            public void windowActivated(WindowEvent e) {
+                if (supportsPreview()) {
+                    AssistantGUIPluginRegistry.getInstance().holdFullRefresh(AbstractAssistantGUIPlugin.this);
+                }
+            }
+
+            @Override
+            public void windowDeactivated(WindowEvent e) {
+                AssistantGUIPluginRegistry.getInstance().releaseFullRefresh();
+            }
+        });
+
         //setButtonColor(doneText, VALID_COLOR);
         setButtonColor(refreshText, VALID_COLOR);
         for (Button component : dialog.getButtons()) {
@@ -1245,11 +1586,18 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
         }
     }
 
+    private int former_displayed_z = -1;
+
     @Override
     public void imageUpdated(ImagePlus imp) {
         if (paused) {
             return;
         }
+        if (imp != null && imp == my_target && my_target.getZ() != former_displayed_z) {
+            // other planes than the previewed slab are looked at; they need the full volume
+            former_displayed_z = my_target.getZ();
+            AssistantGUIPluginRegistry.getInstance().releaseFullRefresh();
+        }
         if (my_sources != null) {
             for (ImagePlus source : my_sources) {
                 if (imp == source) {
@@ -1269,7 +1617,9 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
 
     public void setTargetIsProcessing() {
         if (my_target.getStack() instanceof CLIJxVirtualStack) {
-            ((CLIJxVirtualStack) my_target.getStack()).getBuffer(0).setName(this.getClass().getName());
+            ((CLIJxVirtualStack) my_target.getStack()).setBufferName(this.getClass().getName());
+            // the result buffers are about to be overwritten
+            ((CLIJxVirtualStack) my_target.getStack()).invalidateCache();
         }
         storeParameters();
         setButtonColor(refreshText, REFRESHING_COLOR);
@@ -1308,9 +1658,23 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
     }
 
     public Object[] getArgs() {
+        resolveArguments();
         return args;
     }
 
+    // images of the sources may have been evicted and restored in new buffers since the last refresh
+    private void resolveArguments() {
+        if (args == null) {
+            return;
+        }
+        DeviceMemoryBudget budget = DeviceMemoryBudget.getInstance();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof ClearCLBuffer) {
+                args[i] = budget.resolve((ClearCLBuffer) args[i]);
+            }
+        }
+    }
+
     @Override
     public boolean canManage(CLIJMacroPlugin plugin) {
         if (this.plugin == null) {
@@ -1324,6 +1688,20 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
         return plugin.getName().replace("CLIJ2_", "").replace("CLIJx_", "");
     }
 
+    // true if arguments refer to images which are evicted right now
+    private boolean hasEvictedArguments() {
+        if (args == null) {
+            return false;
+        }
+        resolveArguments();
+        for (Object arg : args) {
+            if (arg instanceof ClearCLBuffer && ((ClearCLBuffer) arg).getPeerPointer() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void optimize(Optimizer optimizer, Logger logger, boolean show_gui) {
 
         // -------------------------------------------------------------------------------------------------------------
@@ -1356,50 +1734,82 @@ public abstract class AbstractAssistantGUIPlugin implements ImageListener, PlugI
         AssistantGUIPlugin[] path = AssistantGUIPluginRegistry.getInstance().getPathToRoot(this);
         System.out.println("Path: " + Arrays.toString(path));
 
-        CLIJMacroPlugin[] plugins = OptimizationUtilities.getCLIJMacroPluginsFromIncubatorPlugins(path);
-        Object[][] parameters = OptimizationUtilities.getParameterArraysFromIncubatorPlugins(path);
+        // the workflow works on the buffers referenced by the nodes' arguments; they must stay on the GPU
+        DeviceMemoryBudget budget = DeviceMemoryBudget.getInstance();
+        budget.suspend();
+        // refreshes and previews would write into the same images while the optimizer evaluates on them, and
+        // Workflow.update() relies on the results of unchanged steps staying in place
+        AssistantGUIPluginRegistry.getInstance().suspendRefreshes();
+        try {
+            for (AssistantGUIPlugin node : path) {
+                synchronized (node) {
+                    // refresh() and refreshPreview() hold this lock; wait for one which is in progress
+                }
+            }
+            for (int i = 1; i < path.length; i++) {
+                if (path[i] instanceof AbstractAssistantGUIPlugin && ((AbstractAssistantGUIPlugin) path[i]).hasEvictedArguments()) {
+                    ((AbstractAssistantGUIPlugin) path[i]).former_fingerprint = null;
+                    path[i].refresh();
+                }
+            }
 
-        Workflow workflow = new Workflow(plugins, parameters);
-        logger.log(workflow.toString());
+            CLIJMacroPlugin[] plugins = OptimizationUtilities.getCLIJMacroPluginsFromIncubatorPlugins(path);
+            Object[][] parameters = OptimizationUtilities.getParameterArraysFromIncubatorPlugins(path);
 
-        System.out.println(Arrays.toString(workflow.getNumericParameterNames()));
-        System.out.println(Arrays.toString(workflow.getPluginIndices()));
-        System.out.println(Arrays.toString(workflow.getParameterIndices()));
+            Workflow workflow = new Workflow(plugins, parameters);
+            logger.log(workflow.toString());
 
+            System.out.println(Arrays.toString(workflow.getNumericParameterNames()));
+            System.out.println(Arrays.toString(workflow.getPluginIndices()));
+            System.out.println(Arrays.toString(workflow.getParameterIndices()));
 
 
 
-        int[] parameter_index_map = OptimizationUtilities.getParameterIndexMap(workflow, show_gui);
-        if (parameter_index_map == null) {
-            System.out.println("Optimization cancelled");
-            return;
-        }
-        System.out.println("Index map: " + Arrays.toString(parameter_index_map));
-        logger.log("Index map: " + Arrays.toString(parameter_index_map));
 
+            int[] parameter_index_map = OptimizationUtilities.getParameterIndexMap(workflow, show_gui);
+            if (parameter_index_map == null) {
+                System.out.println("Optimization cancelled");
+                return;
+            }
+            System.out.println("Index map: " + Arrays.toString(parameter_index_map));
+            logger.log("Index map: " + Arrays.toString(parameter_index_map));
 
-        BinaryImageFitnessFunction f = new BinaryImageFitnessFunction(clij2, workflow,
-                parameter_index_map,
-                ground_truth,
-                mask
-        );
 
-        double[] current = f.getCurrent();
-        System.out.println("Initial: " + Arrays.toString(current));
+            BinaryImageFitnessFunction f = new BinaryImageFitnessFunction(clij2, workflow,
+                    parameter_index_map,
+                    ground_truth,
+                    mask
+            );
 
-        //current = Optimizers.optimizeSimplex(current, workflow, parameter_index_map, f);
-        current = optimizer.optimize(current, workflow, parameter_index_map, f, logger);
+            double[] current = f.getCurrent();
+            System.out.println("Initial: " + Arrays.toString(current));
 
-        logger.log("Optimization done.");
-        System.out.println("Optimum: ");
-        f.value(current);
-        for (AssistantGUIPlugin plugin : path ) {
-            if (!(plugin instanceof Crop3D || plugin instanceof Crop2D)) {
-                plugin.refreshDialogFromArguments();
+            // parameter sets leading to the same plugin arguments are evaluated once
+            MemoizedFitnessFunction memoized = new MemoizedFitnessFunction(f, workflow, parameter_index_map);
+
+            //current = Optimizers.optimizeSimplex(current, workflow, parameter_index_map, f);
+            current = optimizer.optimize(current, workflow, parameter_index_map, memoized, logger);
+
+            logger.log("Optimization done.");
+            logger.log(memoized.getStatistics());
+            System.out.println("Optimum: " + Arrays.toString(current) + " -> " + f.value(current));
+            for (AssistantGUIPlugin plugin : path ) {
+                // the workflow wrote into the result buffers; don't trust former fingerprints
+                if (plugin instanceof AbstractAssistantGUIPlugin) {
+                    ((AbstractAssistantGUIPlugin) plugin).former_fingerprint = null;
+                }
+                if (!(plugin instanceof Crop3D || plugin instanceof Crop2D)) {
+                    plugin.refreshDialogFromArguments();
+                }
             }
+            path[0].setTargetInvalid();
+            f.close();
+            logger.log("Bye.");
+
+        } finally {
+            AssistantGUIPluginRegistry.getInstance().resumeRefreshes();
+            budget.resume();
         }
-        path[0].setTargetInvalid();
-        logger.log("Bye.");
 
         //UnivariatePointValuePair next =  new UnivariatePointValuePair(solution.getPointRef()[0], solution.getValue());
 
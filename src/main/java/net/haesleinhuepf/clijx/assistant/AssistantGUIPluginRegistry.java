@@ -34,6 +34,14 @@ class AssistantGUIPluginRegistry {
     // register and unregister
     ArrayList<AssistantGUIPlugin> registeredPlugins = new ArrayList<>();
 
+    private final RefreshScheduler scheduler = new RefreshScheduler(this);
+    private final ProgressivePreview preview = new ProgressivePreview(this);
+
+    // adjacency index: source image -> plugins using it, target image -> plugin producing it
+    private final Object graph_lock = new Object();
+    private IdentityHashMap<ImagePlus, ArrayList<AssistantGUIPlugin>> followerIndex = null;
+    private IdentityHashMap<ImagePlus, AssistantGUIPlugin> producerIndex = null;
+
     public void register(AssistantGUIPlugin plugin) {
         if (registeredPlugins.size() == 0) {
             int delay = 100;
@@ -42,13 +50,87 @@ class AssistantGUIPluginRegistry {
                 @Override
                 public void run() {
                     highlightConnections();
-                    regenerate();
                 }
             }, delay, delay);
         }
 
-        if (!registeredPlugins.contains(plugin)) {
-            registeredPlugins.add(plugin);
+        synchronized (graph_lock) {
+            if (!registeredPlugins.contains(plugin)) {
+                registeredPlugins.add(plugin);
+            }
+            followerIndex = null;
+        }
+    }
+
+    /**
+     * Needs to be called when sources or target of a registered plugin change so that the adjacency index is rebuilt.
+     */
+    void graphChanged() {
+        synchronized (graph_lock) {
+            followerIndex = null;
+        }
+    }
+
+    private void ensureIndex() {
+        if (followerIndex != null) {
+            return;
+        }
+        IdentityHashMap<ImagePlus, ArrayList<AssistantGUIPlugin>> followers = new IdentityHashMap<>();
+        IdentityHashMap<ImagePlus, AssistantGUIPlugin> producers = new IdentityHashMap<>();
+        for (AssistantGUIPlugin plugin : registeredPlugins) {
+            ImagePlus target = plugin.getTarget();
+            if (target == null) {
+                // not computed yet; graphChanged() is called again as soon as it has a target
+                continue;
+            }
+            producers.put(target, plugin);
+            for (int s = 0; s < plugin.getNumberOfSources(); s++) {
+                ImagePlus source = plugin.getSource(s);
+                if (source == null) {
+                    continue;
+                }
+                ArrayList<AssistantGUIPlugin> list = followers.get(source);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    followers.put(source, list);
+                }
+                if (!list.contains(plugin)) {
+                    list.add(plugin);
+                }
+            }
+        }
+        producerIndex = producers;
+        followerIndex = followers;
+    }
+
+    private ArrayList<AssistantGUIPlugin> getFollowerPlugins(ImagePlus source) {
+        synchronized (graph_lock) {
+            ensureIndex();
+            ArrayList<AssistantGUIPlugin> list = followerIndex.get(source);
+            if (list == null) {
+                return new ArrayList<>();
+            }
+            return new ArrayList<>(list);
+        }
+    }
+
+    ArrayList<AssistantGUIPlugin> getPredecessors(AssistantGUIPlugin plugin) {
+        ArrayList<AssistantGUIPlugin> predecessors = new ArrayList<>();
+        synchronized (graph_lock) {
+            ensureIndex();
+            for (int s = 0; s < plugin.getNumberOfSources(); s++) {
+                AssistantGUIPlugin producer = producerIndex.get(plugin.getSource(s));
+                if (producer != null && !predecessors.contains(producer)) {
+                    predecessors.add(producer);
+                }
+            }
+        }
+        return predecessors;
+    }
+
+    boolean isRegistered(AssistantGUIPlugin plugin) {
+        synchronized (graph_lock) {
+            return registeredPlugins.contains(plugin);
         }
     }
 
@@ -220,7 +302,15 @@ class AssistantGUIPluginRegistry {
 
 
     public void unregister(AssistantGUIPlugin plugin) {
-        registeredPlugins.remove(plugin);
+        synchronized (graph_lock) {
+            registeredPlugins.remove(plugin);
+            followerIndex = null;
+        }
+        scheduler.forget(plugin);
+        preview.forget(plugin);
+        synchronized (output_versions) {
+            output_versions.remove(plugin);
+        }
         if (registeredPlugins.size() == 0) {
 
             heartbeat.cancel();
@@ -236,59 +326,131 @@ class AssistantGUIPluginRegistry {
         }
         //IJ.log("Invalidate " + imp.getTitle());
         if (imp.getStack() instanceof CLIJxVirtualStack) {
-            ((CLIJxVirtualStack) imp.getStack()).getBuffer(0).setName("");
+            ((CLIJxVirtualStack) imp.getStack()).setBufferName("");
         }
+        preview.forget(imp);
 
-        // search for plugins which have it as source and invalidate their targets
-        for (AssistantGUIPlugin plugin : registeredPlugins) {
-            for (int s = 0; s < plugin.getNumberOfSources(); s++) {
-                if (plugin.getSource(s) == imp) {
-                    plugin.setTargetInvalid();
+        // the plugin producing the image needs to be recomputed; until then, it's previewed at lower resolution
+        AssistantGUIPlugin producer = getPlugin(imp);
+        if (producer != null) {
+            preview.request(producer);
+        }
+        if (producer != null && !scheduler.markDirty(producer)) {
+            // pending already; its followers were invalidated when it became dirty
+            return;
+        }
+
+        // push the invalidation to all plugins which have it as source
+        for (AssistantGUIPlugin plugin : getFollowerPlugins(imp)) {
+            plugin.setTargetInvalid();
+        }
+    }
+
+    /**
+     * In slab preview mode, full volume refreshes of the given node and its followers wait while the user edits its
+     * parameters in a dialog.
+     */
+    void holdFullRefresh(AssistantGUIPlugin plugin) {
+        scheduler.hold(plugin);
+    }
+
+    void releaseFullRefresh() {
+        scheduler.release();
+    }
+
+    /**
+     * Stops refreshing and previewing the graph, e.g. while the optimizer works on the nodes' images. Every call
+     * needs a resumeRefreshes().
+     */
+    void suspendRefreshes() {
+        scheduler.suspend();
+        preview.suspend();
+    }
+
+    void resumeRefreshes() {
+        preview.resume();
+        scheduler.resume();
+    }
+
+    // refresh timings of all nodes, oldest first
+    private static final int MAXIMUM_REFRESH_RECORDS = 10000;
+    private final ArrayDeque<RefreshRecord> refresh_records = new ArrayDeque<>();
+
+    void record(RefreshRecord record) {
+        synchronized (refresh_records) {
+            refresh_records.add(record);
+            while (refresh_records.size() > MAXIMUM_REFRESH_RECORDS) {
+                refresh_records.poll();
+            }
+        }
+    }
+
+    /**
+     * Returns the timings and transferred bytes of the recent refreshes of all nodes, oldest first.
+     */
+    public ArrayList<RefreshRecord> getRefreshRecords() {
+        synchronized (refresh_records) {
+            return new ArrayList<>(refresh_records);
+        }
+    }
+
+    public RefreshRecord getLastRefreshRecord(AssistantGUIPlugin plugin) {
+        synchronized (refresh_records) {
+            Iterator<RefreshRecord> iterator = refresh_records.descendingIterator();
+            while (iterator.hasNext()) {
+                RefreshRecord record = iterator.next();
+                if (record.plugin == plugin) {
+                    return record;
                 }
             }
         }
+        return null;
     }
 
-    boolean regenerating = false;
+    public void clearRefreshRecords() {
+        synchronized (refresh_records) {
+            refresh_records.clear();
+        }
+    }
 
-    private void regenerate() {
-        if (regenerating) {
-            return;
+    // incremented whenever a node actually recomputed its result; followers compare these to skip recomputation
+    private final IdentityHashMap<AssistantGUIPlugin, Long> output_versions = new IdentityHashMap<>();
+
+    void outputChanged(AssistantGUIPlugin plugin) {
+        synchronized (output_versions) {
+            output_versions.put(plugin, getOutputVersion(plugin) + 1);
         }
+    }
 
-        regenerating = true;
+    long getOutputVersion(AssistantGUIPlugin plugin) {
+        synchronized (output_versions) {
+            Long version = output_versions.get(plugin);
+            return version == null ? 0 : version;
+        }
+    }
 
-        //System.out.println("Regen");
-        try{
-            boolean found_something_to_regenerate = true;
-            while (found_something_to_regenerate) {
-                found_something_to_regenerate = false;
-
-                for (AssistantGUIPlugin plugin : registeredPlugins) {
-                    //ImagePlus source = plugin.getSource();
-                    ImagePlus target = plugin.getTarget();
-                    if (target != null && allSourcesValid(plugin) && !isValid(target)) {
-                        //IJ.log("Regenerating " + target.getTitle());
-
-                        plugin.setTargetIsProcessing();
-                        plugin.refresh();
-                        found_something_to_regenerate = true;
-
-                        if (isValid(target)) {
-                            plugin.setTargetValid();
-                        } else {
-                            plugin.setTargetInvalid();
-                        }
+    /**
+     * Returns the output versions of the plugins producing the sources of the given plugin, -1 for sources which
+     * aren't produced by a plugin.
+     */
+    Long[] getSourceVersions(AssistantGUIPlugin plugin) {
+        Long[] versions = new Long[plugin.getNumberOfSources()];
+        for (int s = 0; s < versions.length; s++) {
+            AssistantGUIPlugin producer = getPlugin(plugin.getSource(s));
+            versions[s] = producer == null ? -1 : getOutputVersion(producer);
+        }
+        return versions;
+    }
 
-                        break;
-                    }
-                }
-            }
-        } catch (ConcurrentModificationException e) {}
-        regenerating = false;
+    /**
+     * Returns true if the plugin was invalidated and waits to be recomputed. Running refreshes can use this to stop
+     * early because newer parameters arrived.
+     */
+    boolean isPending(AssistantGUIPlugin plugin) {
+        return scheduler.isDirty(plugin);
     }
 
-    private boolean allSourcesValid(AssistantGUIPlugin plugin) {
+    boolean allSourcesValid(AssistantGUIPlugin plugin) {
         for (int s = 0; s < plugin.getNumberOfSources(); s++) {
             if (!isValid(plugin.getSource(s))) {
                 return false;
@@ -297,9 +459,9 @@ class AssistantGUIPluginRegistry {
         return true;
     }
 
-    private boolean isValid(ImagePlus imp) {
+    boolean isValid(ImagePlus imp) {
         if (imp.getStack() instanceof CLIJxVirtualStack) {
-            return ((CLIJxVirtualStack) imp.getStack()).getBuffer(0).getName().length() != 0;
+            return ((CLIJxVirtualStack) imp.getStack()).getBufferName().length() != 0;
         }
         return true;
     }
@@ -361,39 +523,22 @@ class AssistantGUIPluginRegistry {
     public ArrayList<ImagePlus> getFollowers(ImagePlus source) {
         ArrayList<ImagePlus> followers = new ArrayList();
 
-        for (AssistantGUIPlugin plugin : registeredPlugins) {
-            for (int s = 0; s < plugin.getNumberOfSources(); s++) {
-                if (plugin.getSource(s) == source) {
-                    followers.add(plugin.getTarget());
-                }
-            }
+        for (AssistantGUIPlugin plugin : getFollowerPlugins(source)) {
+            followers.add(plugin.getTarget());
         }
 
         return followers;
     }
 
     public ArrayList<AssistantGUIPlugin> getFollowers(AssistantGUIPlugin node) {
-        ArrayList<AssistantGUIPlugin> followers = new ArrayList();
-
-        for (AssistantGUIPlugin plugin : registeredPlugins) {
-            for (int s = 0; s < plugin.getNumberOfSources(); s++) {
-                if (plugin.getSource(s) == node.getTarget()) {
-                    followers.add(plugin);
-                }
-            }
-        }
-
-        return followers;
+        return getFollowerPlugins(node.getTarget());
     }
 
     public AssistantGUIPlugin getPlugin(ImagePlus target) {
-        for (AssistantGUIPlugin plugin : registeredPlugins) {
-            if (plugin.getTarget() == target) {
-                return plugin;
-            }
+        synchronized (graph_lock) {
+            ensureIndex();
+            return producerIndex.get(target);
         }
-
-        return null;
     }
 /*
     ArrayList<Object[]> getGraph(ImagePlus imp) {
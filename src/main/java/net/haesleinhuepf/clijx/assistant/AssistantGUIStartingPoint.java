@@ -13,6 +13,7 @@ import net.haesleinhuepf.clijx.gui.InteractiveWindowPosition;
 import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
 import net.haesleinhuepf.clijx.assistant.services.SuggestionService;
 import net.haesleinhuepf.spimcat.io.CLIJxVirtualStack;
+import net.haesleinhuepf.spimcat.io.DeviceMemoryBudget;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
@@ -71,12 +72,15 @@ public class AssistantGUIStartingPoint extends AbstractAssistantGUIPlugin {
 
     int former_refreshed_t = -1;
     public synchronized void refresh() {
-        if (my_sources[0].getT() == former_refreshed_t) {
+        output_unchanged = my_sources[0].getT() == former_refreshed_t;
+        if (output_unchanged) {
             return;
         }
         former_refreshed_t = my_sources[0].getT();
 
         if (result != null) {
+            DeviceMemoryBudget.getInstance().unregister(result);
+            // imagePlusToBuffer() doesn't lease from the BufferPool
             for (int i = 0; i < result.length; i++) {
                 result[i].close();
             }
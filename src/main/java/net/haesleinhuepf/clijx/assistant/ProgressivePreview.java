@@ -0,0 +1,393 @@
+package net.haesleinhuepf.clijx.assistant;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.options.AssistantOptions;
+import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
+import net.haesleinhuepf.spimcat.io.CLIJxVirtualStack;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ProgressivePreview
+ * <p>
+ * While parameters are being edited, the RefreshScheduler waits for the edits to settle before it recomputes the
+ * graph at full resolution. Meanwhile, the invalidated nodes and everything downstream of them are computed here
+ * immediately on images downsampled in X and Y by the factor configured in the AssistantOptions, and shown enlarged
+ * in their windows. Valid full resolution images feeding into the previewed part of the graph, typically the
+ * starting point, are downsampled once and kept until they are invalidated. Downsampled results of the nodes are
+ * kept as well so that consecutive edits don't allocate.
+ * <p>
+ * In slab preview mode, stacks are additionally restricted to the planes around the displayed one, extended by the
+ * halo the filters of the previewed nodes need in Z, so that the displayed plane is computed correctly at a fraction
+ * of the cost of the whole volume.
+ */
+class ProgressivePreview {
+
+    private final AssistantGUIPluginRegistry registry;
+
+    private final LinkedHashSet<AssistantGUIPlugin> requested = new LinkedHashSet<>();
+    private boolean running = false;
+    // counts suspend() calls, e.g. by the optimizer which works on the nodes' images
+    private int suspended = 0;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "CLIJx-Assistant preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // downsampled or cropped copy of an image, or a preview computed from those
+    private static class Reduced {
+        final ClearCLBuffer[] buffers;
+        // planes of the full stack the buffers correspond to
+        final int slab_start;
+        final int slab_depth;
+        // planes around the displayed one the slab was cropped for
+        final int halo;
+
+        Reduced(ClearCLBuffer[] buffers, int slab_start, int slab_depth, int halo) {
+            this.buffers = buffers;
+            this.slab_start = slab_start;
+            this.slab_depth = slab_depth;
+            this.halo = halo;
+        }
+    }
+
+    // reduced copies of valid full resolution images, and downsampled results of previewed nodes
+    private final IdentityHashMap<ImagePlus, Reduced> downsampled_sources = new IdentityHashMap<>();
+    private final IdentityHashMap<AssistantGUIPlugin, ClearCLBuffer[]> previews = new IdentityHashMap<>();
+    private int factor = 1;
+    // released by the worker once it doesn't use them anymore
+    private final ArrayList<ClearCLBuffer[]> obsolete = new ArrayList<>();
+    // counts invalidations so that images changing while being downsampled aren't kept
+    private long generation = 0;
+
+    ProgressivePreview(AssistantGUIPluginRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Schedules a preview of the given node and its followers, unless previews are switched off.
+     */
+    synchronized void request(AssistantGUIPlugin plugin) {
+        if (AssistantOptions.getInstance().getPreviewDownsampling() <= 1 && !AssistantOptions.getInstance().isSlabPreview()) {
+            return;
+        }
+        requested.add(plugin);
+        if (!running && suspended == 0) {
+            running = true;
+            worker.submit(this::process);
+        }
+    }
+
+    /**
+     * Stops previewing until resume() is called; a pass in progress stops before its next node. Requests arriving
+     * meanwhile are previewed after resume().
+     */
+    synchronized void suspend() {
+        suspended++;
+    }
+
+    synchronized void resume() {
+        suspended = Math.max(0, suspended - 1);
+        if (suspended == 0 && !running && !requested.isEmpty()) {
+            running = true;
+            worker.submit(this::process);
+        }
+    }
+
+    /**
+     * Releases the downsampled copy of an image, e.g. because its full resolution content changes.
+     */
+    void forget(ImagePlus imp) {
+        synchronized (this) {
+            generation++;
+            discard(downsampled_sources.remove(imp));
+        }
+        releaseObsoleteIfIdle();
+    }
+
+    void forget(AssistantGUIPlugin plugin) {
+        synchronized (this) {
+            requested.remove(plugin);
+            discard(previews.remove(plugin));
+            if (plugin.getTarget() != null) {
+                generation++;
+                discard(downsampled_sources.remove(plugin.getTarget()));
+            }
+        }
+        releaseObsoleteIfIdle();
+    }
+
+    private void process() {
+        while (true) {
+            // forget() doesn't release images while the worker is running
+            releaseObsolete();
+            ArrayList<AssistantGUIPlugin> order;
+            synchronized (this) {
+                if (requested.isEmpty() || suspended > 0) {
+                    // resume() restarts the worker
+                    running = false;
+                    order = null;
+                } else {
+                    order = withFollowers(requested);
+                    requested.clear();
+                }
+            }
+            if (order == null) {
+                releaseObsolete();
+                return;
+            }
+            updateFactor();
+
+            IdentityHashMap<AssistantGUIPlugin, Integer> halos = getHalos(order);
+
+            IdentityHashMap<AssistantGUIPlugin, Reduced> computed = new IdentityHashMap<>();
+            for (AssistantGUIPlugin plugin : order) {
+                if (hasRequests()) {
+                    // newer edits arrived; start over with those
+                    break;
+                }
+                if (isSuspended()) {
+                    // continue here after resume()
+                    request(plugin);
+                    break;
+                }
+                try {
+                    preview(plugin, computed, halos.get(plugin));
+                } catch (Exception e) {
+                    System.out.println("Exception while previewing " + plugin.getName() + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Planes each node needs around the displayed one in its sources: its own halo plus the largest halo along any
+     * path to a previewed follower, as the halos of subsequent nodes add up. Siblings on other branches don't count.
+     */
+    private IdentityHashMap<AssistantGUIPlugin, Integer> getHalos(ArrayList<AssistantGUIPlugin> order) {
+        IdentityHashMap<AssistantGUIPlugin, Integer> halos = new IdentityHashMap<>();
+        boolean slab_preview = AssistantOptions.getInstance().isSlabPreview();
+        // followers come later in the order
+        for (int i = order.size() - 1; i >= 0; i--) {
+            AssistantGUIPlugin plugin = order.get(i);
+            if (!slab_preview) {
+                halos.put(plugin, Integer.MAX_VALUE / 2);
+                continue;
+            }
+            int downstream = 0;
+            for (AssistantGUIPlugin follower : registry.getFollowers(plugin)) {
+                Integer follower_halo = halos.get(follower);
+                if (follower_halo != null) {
+                    downstream = Math.max(downstream, follower_halo);
+                }
+            }
+            int own = plugin instanceof AbstractAssistantGUIPlugin ? ((AbstractAssistantGUIPlugin) plugin).getPreviewHalo()[2] : 0;
+            halos.put(plugin, (int) Math.min(Integer.MAX_VALUE / 2, (long) own + downstream));
+        }
+        return halos;
+    }
+
+    private synchronized boolean hasRequests() {
+        return !requested.isEmpty();
+    }
+
+    private synchronized boolean isSuspended() {
+        return suspended > 0;
+    }
+
+    private void preview(AssistantGUIPlugin plugin, IdentityHashMap<AssistantGUIPlugin, Reduced> computed, int halo) {
+        if (!(plugin instanceof AbstractAssistantGUIPlugin) || !registry.isRegistered(plugin)) {
+            return;
+        }
+        Reduced[] reduced = new Reduced[plugin.getNumberOfSources()];
+        ClearCLBuffer[][] sources = new ClearCLBuffer[reduced.length][];
+        // previewed producers may have cropped more planes for other followers; other sources have to match those
+        for (int s = 0; s < sources.length; s++) {
+            AssistantGUIPlugin producer = registry.getPlugin(plugin.getSource(s));
+            if (producer != null && computed.containsKey(producer)) {
+                halo = Math.max(halo, computed.get(producer).halo);
+            }
+        }
+        for (int s = 0; s < sources.length; s++) {
+            ImagePlus source = plugin.getSource(s);
+            AssistantGUIPlugin producer = registry.getPlugin(source);
+            if (producer != null && computed.containsKey(producer)) {
+                reduced[s] = computed.get(producer);
+            } else if (registry.isValid(source) && source.getStack() instanceof CLIJxVirtualStack) {
+                reduced[s] = getReduced(source, halo);
+            } else {
+                // neither previewed nor valid at full resolution
+                return;
+            }
+            if (reduced[s].slab_start != reduced[0].slab_start || reduced[s].slab_depth != reduced[0].slab_depth) {
+                // sources show different planes
+                return;
+            }
+            sources[s] = reduced[s].buffers;
+        }
+
+        ClearCLBuffer[] former;
+        synchronized (this) {
+            former = previews.get(plugin);
+        }
+        ClearCLBuffer[] preview = ((AbstractAssistantGUIPlugin) plugin).refreshPreview(sources, former, factor, reduced[0].slab_start);
+        if (preview == null) {
+            return;
+        }
+        if (preview != former) {
+            synchronized (this) {
+                previews.put(plugin, preview);
+                discard(former);
+            }
+        }
+        computed.put(plugin, new Reduced(preview, reduced[0].slab_start, reduced[0].slab_depth, halo));
+    }
+
+    private Reduced getReduced(ImagePlus imp, int halo) {
+        CLIJxVirtualStack stack = (CLIJxVirtualStack) imp.getStack();
+        int depth = imp.getNSlices();
+        int slab_start = 0;
+        int slab_depth = depth;
+        if (depth > 1 && (long) 2 * halo + 1 < depth) {
+            int z = imp.getZ() - 1;
+            slab_start = Math.max(0, Math.min(depth - 2 * halo - 1, z - halo));
+            slab_depth = 2 * halo + 1;
+        }
+
+        long former_generation;
+        synchronized (this) {
+            Reduced reduced = downsampled_sources.get(imp);
+            if (reduced != null && reduced.slab_start == slab_start && reduced.slab_depth == slab_depth) {
+                return reduced;
+            }
+            former_generation = generation;
+        }
+
+        CLIJx clijx = CLIJx.getInstance();
+        ClearCLBuffer[] buffers = new ClearCLBuffer[stack.getNumberOfChannels()];
+        synchronized (clijx) {
+            for (int c = 0; c < buffers.length; c++) {
+                ClearCLBuffer full = stack.getBuffer(c);
+                ClearCLBuffer slab = full;
+                if (slab_depth != depth) {
+                    slab = clijx.create(new long[]{full.getWidth(), full.getHeight(), slab_depth}, full.getNativeType());
+                    clijx.crop3D(full, slab, 0, 0, slab_start);
+                }
+                if (factor == 1) {
+                    if (slab == full) {
+                        slab = clijx.create(full);
+                        clijx.copy(full, slab);
+                    }
+                    buffers[c] = slab;
+                    continue;
+                }
+                long[] dimensions = slab.getDimensions().clone();
+                dimensions[0] = (dimensions[0] + factor - 1) / factor;
+                dimensions[1] = (dimensions[1] + factor - 1) / factor;
+                buffers[c] = clijx.create(dimensions, full.getNativeType());
+                if (slab.getDimension() == 3) {
+                    clijx.downsample3D(slab, buffers[c], 1.0 / factor, 1.0 / factor, 1.0);
+                } else {
+                    clijx.downsample2D(slab, buffers[c], 1.0 / factor, 1.0 / factor);
+                }
+                if (slab != full) {
+                    slab.close();
+                }
+            }
+        }
+
+        Reduced reduced = new Reduced(buffers, slab_start, slab_depth, halo);
+        synchronized (this) {
+            if (generation == former_generation) {
+                discard(downsampled_sources.put(imp, reduced));
+            } else {
+                // the full resolution image changed meanwhile; use it for this pass only
+                discard(buffers);
+            }
+        }
+        return reduced;
+    }
+
+    // a changed factor makes all kept images useless
+    private void updateFactor() {
+        int new_factor = AssistantOptions.getInstance().getPreviewDownsampling();
+        synchronized (this) {
+            if (new_factor == factor) {
+                return;
+            }
+            factor = new_factor;
+            for (Reduced reduced : downsampled_sources.values()) {
+                obsolete.add(reduced.buffers);
+            }
+            obsolete.addAll(previews.values());
+            downsampled_sources.clear();
+            previews.clear();
+        }
+        releaseObsolete();
+    }
+
+    // requested nodes and everything downstream, in registration order which is a topological order
+    private ArrayList<AssistantGUIPlugin> withFollowers(LinkedHashSet<AssistantGUIPlugin> nodes) {
+        LinkedHashSet<AssistantGUIPlugin> all = new LinkedHashSet<>();
+        ArrayList<AssistantGUIPlugin> queue = new ArrayList<>(nodes);
+        while (!queue.isEmpty()) {
+            AssistantGUIPlugin node = queue.remove(queue.size() - 1);
+            if (node.getTarget() != null && all.add(node)) {
+                queue.addAll(registry.getFollowers(node));
+            }
+        }
+        ArrayList<AssistantGUIPlugin> order = new ArrayList<>();
+        for (AssistantGUIPlugin plugin : new ArrayList<>(registry.registeredPlugins)) {
+            if (all.contains(plugin)) {
+                order.add(plugin);
+            }
+        }
+        return order;
+    }
+
+    // caller holds the lock of this
+    private void discard(ClearCLBuffer[] buffers) {
+        if (buffers != null) {
+            obsolete.add(buffers);
+        }
+    }
+
+    private void discard(Reduced reduced) {
+        if (reduced != null) {
+            obsolete.add(reduced.buffers);
+        }
+    }
+
+    private void releaseObsoleteIfIdle() {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+        }
+        releaseObsolete();
+    }
+
+    private void releaseObsolete() {
+        ArrayList<ClearCLBuffer[]> list;
+        synchronized (this) {
+            list = new ArrayList<>(obsolete);
+            obsolete.clear();
+        }
+        synchronized (CLIJx.getInstance()) {
+            for (ClearCLBuffer[] buffers : list) {
+                for (ClearCLBuffer buffer : buffers) {
+                    buffer.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.haesleinhuepf.clijx.assistant;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
+
+/**
+ * RefreshRecord
+ * <p>
+ * Timings and data volumes of one refresh of one node. Times are System.nanoTime() values; phases which didn't
+ * happen, e.g. because the node was skipped or implements its own refresh, have a duration of 0.
+ */
+public class RefreshRecord {
+    final AssistantGUIPlugin plugin;
+    public final String node;
+    public final String thread;
+    public final long thread_id;
+
+    public long start_ns;
+    public long total_ns;
+
+    public long push_start_ns;
+    public long push_ns;
+    // waiting for other nodes' kernels on the shared context, before kernel_start_ns
+    public long lock_wait_start_ns;
+    public long lock_wait_ns;
+    public long kernel_start_ns;
+    public long kernel_ns;
+    public long render_start_ns;
+    public long render_ns;
+
+    // host -> device
+    public long bytes_pushed;
+    // device -> host while rendering the result
+    public long bytes_pulled;
+    // device memory held by the result images after the refresh
+    public long result_bytes;
+
+    public boolean skipped;
+
+    RefreshRecord(AssistantGUIPlugin plugin) {
+        this.plugin = plugin;
+        ImagePlus target = plugin.getTarget();
+        // window titles tell apart several nodes of the same kind
+        this.node = target != null ? target.getTitle() : plugin.getName();
+        this.thread = Thread.currentThread().getName();
+        this.thread_id = Thread.currentThread().getId();
+        this.start_ns = System.nanoTime();
+    }
+}
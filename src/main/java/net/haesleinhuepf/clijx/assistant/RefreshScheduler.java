@@ -0,0 +1,339 @@
+package net.haesleinhuepf.clijx.assistant;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clijx.assistant.options.AssistantOptions;
+import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
+import net.haesleinhuepf.spimcat.io.CLIJxVirtualStack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RefreshScheduler
+ * <p>
+ * Keeps the set of nodes in the assistant graph which need to be recomputed. Invalidated nodes are pushed in here by
+ * the AssistantGUIPluginRegistry and processed in topological order on a dedicated worker thread. If nothing is
+ * dirty, nothing runs. Independent branches of the graph are refreshed concurrently on a pool of branch threads;
+ * a node is started as soon as all its dirty predecessors are done.
+ * <p>
+ * Invalidations are debounced: a pass starts only after no further invalidation arrived for the configured debounce
+ * window, so that typing a number into a dialog results in one recomputation. Nodes which get invalidated again while
+ * a pass is running are skipped in that pass and recomputed with the newest parameters in the next one.
+ * <p>
+ * In slab preview mode, the node whose dialog is being edited and everything downstream of it are held back; the
+ * ProgressivePreview shows the planes around the displayed one meanwhile. Other parts of the graph are refreshed as
+ * usual.
+ */
+class RefreshScheduler {
+
+    private final AssistantGUIPluginRegistry registry;
+
+    private final LinkedHashSet<AssistantGUIPlugin> dirty = new LinkedHashSet<>();
+    private boolean running = false;
+    private long last_invalidation = 0;
+    // node whose parameters are edited in slab preview mode; it and its followers wait for release()
+    private AssistantGUIPlugin held = null;
+    // counts suspend() calls, e.g. by the optimizer which works on the nodes' images
+    private int suspended = 0;
+
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "CLIJx-Assistant refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ExecutorService branch_pool = null;
+    private int branch_pool_size = 0;
+
+    RefreshScheduler(AssistantGUIPluginRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Marks a node as dirty and makes sure the worker processes it.
+     *
+     * @return false if the node was pending already
+     */
+    synchronized boolean markDirty(AssistantGUIPlugin plugin) {
+        if (!dirty.add(plugin)) {
+            return false;
+        }
+        last_invalidation = System.currentTimeMillis();
+        if (!running) {
+            running = true;
+            worker.schedule(this::process, AssistantOptions.getInstance().getRefreshDebounce(), TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    synchronized void hold(AssistantGUIPlugin plugin) {
+        held = AssistantOptions.getInstance().isSlabPreview() ? plugin : null;
+    }
+
+    /**
+     * Lets refreshes held back by hold() start.
+     */
+    synchronized void release() {
+        if (held == null) {
+            return;
+        }
+        held = null;
+        if (!running && suspended == 0 && !dirty.isEmpty()) {
+            running = true;
+            worker.schedule(this::process, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops processing until resume() is called; a pass in progress stops before its next node. Nodes invalidated
+     * meanwhile are refreshed after resume().
+     */
+    synchronized void suspend() {
+        suspended++;
+    }
+
+    synchronized void resume() {
+        suspended = Math.max(0, suspended - 1);
+        if (suspended == 0 && !running && !dirty.isEmpty()) {
+            running = true;
+            worker.schedule(this::process, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized boolean isSuspended() {
+        return suspended > 0;
+    }
+
+    synchronized boolean isDirty(AssistantGUIPlugin plugin) {
+        return dirty.contains(plugin);
+    }
+
+    synchronized void forget(AssistantGUIPlugin plugin) {
+        dirty.remove(plugin);
+    }
+
+    private void process() {
+        while (true) {
+            ArrayList<AssistantGUIPlugin> order;
+            synchronized (this) {
+                if (dirty.isEmpty() || suspended > 0) {
+                    // resume() restarts the worker
+                    running = false;
+                    return;
+                }
+                long remaining_debounce = last_invalidation + AssistantOptions.getInstance().getRefreshDebounce() - System.currentTimeMillis();
+                if (remaining_debounce > 0) {
+                    // invalidations are still coming in; wait until they settle
+                    worker.schedule(this::process, remaining_debounce, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                LinkedHashSet<AssistantGUIPlugin> ready = new LinkedHashSet<>(dirty);
+                if (held != null) {
+                    ready.removeAll(withFollowers(held));
+                }
+                if (ready.isEmpty()) {
+                    // only held nodes are dirty; release() restarts the worker
+                    running = false;
+                    return;
+                }
+                order = sortTopologically(ready);
+                dirty.removeAll(ready);
+            }
+
+            int threads = AssistantOptions.getInstance().getRefreshThreads();
+            if (threads <= 1 || order.size() == 1) {
+                for (AssistantGUIPlugin plugin : order) {
+                    refreshSafely(plugin);
+                }
+            } else {
+                refreshBranchesInParallel(order, threads);
+            }
+        }
+    }
+
+    private void refreshBranchesInParallel(ArrayList<AssistantGUIPlugin> order, int threads) {
+        if (branch_pool == null || branch_pool_size != threads) {
+            if (branch_pool != null) {
+                branch_pool.shutdown();
+            }
+            branch_pool = Executors.newFixedThreadPool(threads, (runnable) -> {
+                Thread thread = new Thread(runnable, "CLIJx-Assistant branch refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            branch_pool_size = threads;
+        }
+
+        // count for every node how many of its predecessors are part of this pass
+        IdentityHashMap<AssistantGUIPlugin, Integer> open_predecessors = new IdentityHashMap<>();
+        IdentityHashMap<AssistantGUIPlugin, ArrayList<AssistantGUIPlugin>> successors = new IdentityHashMap<>();
+        for (AssistantGUIPlugin plugin : order) {
+            open_predecessors.put(plugin, 0);
+            successors.put(plugin, new ArrayList<>());
+        }
+        for (AssistantGUIPlugin plugin : order) {
+            for (AssistantGUIPlugin predecessor : registry.getPredecessors(plugin)) {
+                if (successors.containsKey(predecessor)) {
+                    successors.get(predecessor).add(plugin);
+                    open_predecessors.put(plugin, open_predecessors.get(plugin) + 1);
+                }
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(order.size());
+        for (AssistantGUIPlugin plugin : order) {
+            if (open_predecessors.get(plugin) == 0) {
+                submitBranch(plugin, open_predecessors, successors, done);
+            }
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void submitBranch(AssistantGUIPlugin plugin, IdentityHashMap<AssistantGUIPlugin, Integer> open_predecessors, IdentityHashMap<AssistantGUIPlugin, ArrayList<AssistantGUIPlugin>> successors, CountDownLatch done) {
+        branch_pool.submit(() -> {
+            try {
+                refreshSafely(plugin);
+            } finally {
+                // merge nodes with multiple sources start only after the last of their sources is done
+                for (AssistantGUIPlugin successor : successors.get(plugin)) {
+                    boolean ready;
+                    synchronized (open_predecessors) {
+                        int count = open_predecessors.get(successor) - 1;
+                        open_predecessors.put(successor, count);
+                        ready = count == 0;
+                    }
+                    if (ready) {
+                        submitBranch(successor, open_predecessors, successors, done);
+                    }
+                }
+                done.countDown();
+            }
+        });
+    }
+
+    private void refreshSafely(AssistantGUIPlugin plugin) {
+        try {
+            refresh(plugin);
+        } catch (Exception e) {
+            System.out.println("Exception while refreshing " + plugin.getName() + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private void refresh(AssistantGUIPlugin plugin) {
+        ImagePlus target = plugin.getTarget();
+        if (target == null || !registry.isRegistered(plugin)) {
+            return;
+        }
+        if (isDirty(plugin)) {
+            // invalidated again after this pass started; the next pass computes it with the newest parameters
+            return;
+        }
+        if (!registry.allSourcesValid(plugin)) {
+            // a predecessor failed or got invalidated again; it will re-invalidate this node once it is processed
+            return;
+        }
+        if (isSuspended()) {
+            // computed after resume()
+            markDirty(plugin);
+            return;
+        }
+
+        RefreshRecord record = new RefreshRecord(plugin);
+        if (plugin instanceof AbstractAssistantGUIPlugin) {
+            ((AbstractAssistantGUIPlugin) plugin).refresh_record = record;
+        }
+
+        plugin.setTargetIsProcessing();
+        // another branch's allocations must not evict the images this refresh reads and writes
+        ArrayList<CLIJxVirtualStack> pinned = new ArrayList<>();
+        for (int s = 0; s < plugin.getNumberOfSources(); s++) {
+            pin(plugin.getSource(s), pinned);
+        }
+        pin(target, pinned);
+        try {
+            plugin.refresh();
+        } finally {
+            for (CLIJxVirtualStack stack : pinned) {
+                stack.unpin();
+            }
+        }
+        boolean unchanged = plugin instanceof AbstractAssistantGUIPlugin && ((AbstractAssistantGUIPlugin) plugin).output_unchanged;
+        // a refresh overtaken by newer parameters publishes nothing; the next pass computes the node again
+        boolean incomplete = plugin instanceof AbstractAssistantGUIPlugin && ((AbstractAssistantGUIPlugin) plugin).refresh_incomplete;
+        if (!unchanged && !incomplete) {
+            registry.outputChanged(plugin);
+        }
+
+        if (plugin instanceof AbstractAssistantGUIPlugin) {
+            ((AbstractAssistantGUIPlugin) plugin).refresh_record = null;
+        }
+        record.total_ns = System.nanoTime() - record.start_ns;
+        record.skipped = unchanged;
+        target = plugin.getTarget();
+        if (target != null && target.getStack() instanceof CLIJxVirtualStack) {
+            record.result_bytes = ((CLIJxVirtualStack) target.getStack()).getSizeInBytes();
+        }
+        registry.record(record);
+
+        if (registry.isValid(plugin.getTarget())) {
+            plugin.setTargetValid();
+        } else {
+            plugin.setTargetInvalid();
+        }
+    }
+
+    private static void pin(ImagePlus imp, ArrayList<CLIJxVirtualStack> pinned) {
+        if (imp != null && imp.getStack() instanceof CLIJxVirtualStack) {
+            CLIJxVirtualStack stack = (CLIJxVirtualStack) imp.getStack();
+            stack.pin();
+            pinned.add(stack);
+        }
+    }
+
+    private Set<AssistantGUIPlugin> withFollowers(AssistantGUIPlugin node) {
+        Set<AssistantGUIPlugin> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayList<AssistantGUIPlugin> queue = new ArrayList<>();
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            AssistantGUIPlugin current = queue.remove(queue.size() - 1);
+            if (all.add(current) && current.getTarget() != null) {
+                queue.addAll(registry.getFollowers(current));
+            }
+        }
+        return all;
+    }
+
+    private ArrayList<AssistantGUIPlugin> sortTopologically(Set<AssistantGUIPlugin> nodes) {
+        ArrayList<AssistantGUIPlugin> sorted = new ArrayList<>();
+        Set<AssistantGUIPlugin> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (AssistantGUIPlugin node : nodes) {
+            visit(node, nodes, visited, sorted);
+        }
+        return sorted;
+    }
+
+    private void visit(AssistantGUIPlugin node, Set<AssistantGUIPlugin> nodes, Set<AssistantGUIPlugin> visited, ArrayList<AssistantGUIPlugin> sorted) {
+        if (!visited.add(node)) {
+            return;
+        }
+        for (AssistantGUIPlugin predecessor : registry.getPredecessors(node)) {
+            if (nodes.contains(predecessor)) {
+                visit(predecessor, nodes, visited, sorted);
+            }
+        }
+        sorted.add(node);
+    }
+}
@@ -0,0 +1,131 @@
+package net.haesleinhuepf.clijx.assistant;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * RefreshStatistics
+ * <p>
+ * Shows and exports the refresh records collected by the AssistantGUIPluginRegistry: as table with one row per
+ * node, as CSV with one row per refresh and as Chrome trace-event JSON (chrome://tracing, Perfetto) showing refresh
+ * cascades on a time line per thread.
+ */
+public class RefreshStatistics {
+
+    /**
+     * Shows one row per node summing up all its refreshes.
+     */
+    public static void showTable(List<RefreshRecord> records) {
+        LinkedHashMap<String, long[]> sums = new LinkedHashMap<>();
+        LinkedHashMap<String, Long> memory = new LinkedHashMap<>();
+        for (RefreshRecord record : records) {
+            long[] sum = sums.get(record.node);
+            if (sum == null) {
+                sum = new long[9];
+                sums.put(record.node, sum);
+            }
+            sum[0]++;
+            sum[1] += record.skipped ? 1 : 0;
+            sum[2] += record.total_ns;
+            sum[3] += record.push_ns;
+            sum[4] += record.kernel_ns;
+            sum[5] += record.render_ns;
+            sum[6] += record.bytes_pushed;
+            sum[7] += record.bytes_pulled;
+            sum[8] += record.lock_wait_ns;
+            memory.put(record.node, record.result_bytes);
+        }
+
+        ResultsTable table = new ResultsTable();
+        for (String node : sums.keySet()) {
+            long[] sum = sums.get(node);
+            table.incrementCounter();
+            table.addValue("Node", node);
+            table.addValue("Refreshes", sum[0]);
+            table.addValue("Skipped", sum[1]);
+            table.addValue("Total_ms", sum[2] / 1e6);
+            table.addValue("Push_ms", sum[3] / 1e6);
+            table.addValue("Lock_wait_ms", sum[8] / 1e6);
+            table.addValue("Kernel_ms", sum[4] / 1e6);
+            table.addValue("Render_ms", sum[5] / 1e6);
+            table.addValue("Pushed_MB", sum[6] / 1024.0 / 1024.0);
+            table.addValue("Pulled_MB", sum[7] / 1024.0 / 1024.0);
+            table.addValue("Result_memory_MB", memory.get(node) / 1024.0 / 1024.0);
+        }
+        table.show("CLIJx-Assistant refresh statistics");
+    }
+
+    public static void saveCSV(List<RefreshRecord> records, File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("node,thread,start_ms,total_ms,push_ms,lock_wait_ms,kernel_ms,render_ms,bytes_pushed,bytes_pulled,result_bytes,skipped\n");
+            long origin = records.isEmpty() ? 0 : records.get(0).start_ns;
+            for (RefreshRecord record : records) {
+                writer.write("\"" + record.node.replace("\"", "\"\"") + "\"," +
+                        "\"" + record.thread + "\"," +
+                        (record.start_ns - origin) / 1e6 + "," +
+                        record.total_ns / 1e6 + "," +
+                        record.push_ns / 1e6 + "," +
+                        record.lock_wait_ns / 1e6 + "," +
+                        record.kernel_ns / 1e6 + "," +
+                        record.render_ns / 1e6 + "," +
+                        record.bytes_pushed + "," +
+                        record.bytes_pulled + "," +
+                        record.result_bytes + "," +
+                        record.skipped + "\n");
+            }
+        }
+    }
+
+    public static void saveChromeTrace(List<RefreshRecord> records, File file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"traceEvents\":[\n");
+        HashSet<Long> threads = new HashSet<>();
+        boolean first = true;
+        for (RefreshRecord record : records) {
+            if (threads.add(record.thread_id)) {
+                first = appendEvent(json, first, "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + record.thread_id + ",\"args\":{\"name\":\"" + escape(record.thread) + "\"}}");
+            }
+            String args = "\"args\":{\"bytes_pushed\":" + record.bytes_pushed + ",\"bytes_pulled\":" + record.bytes_pulled + ",\"result_bytes\":" + record.result_bytes + ",\"skipped\":" + record.skipped + "}";
+            first = appendEvent(json, first, completeEvent(escape(record.node), "refresh", record.start_ns, record.total_ns, record.thread_id, args));
+            if (record.push_ns > 0) {
+                first = appendEvent(json, first, completeEvent("push", "phase", record.push_start_ns, record.push_ns, record.thread_id, null));
+            }
+            if (record.lock_wait_ns > 0) {
+                first = appendEvent(json, first, completeEvent("lock wait", "phase", record.lock_wait_start_ns, record.lock_wait_ns, record.thread_id, null));
+            }
+            if (record.kernel_ns > 0) {
+                first = appendEvent(json, first, completeEvent("kernel", "phase", record.kernel_start_ns, record.kernel_ns, record.thread_id, null));
+            }
+            if (record.render_ns > 0) {
+                first = appendEvent(json, first, completeEvent("render", "phase", record.render_start_ns, record.render_ns, record.thread_id, null));
+            }
+        }
+        json.append("\n]}\n");
+
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(json.toString());
+        }
+    }
+
+    private static String completeEvent(String name, String category, long start_ns, long duration_ns, long thread_id, String args) {
+        return "{\"name\":\"" + name + "\",\"cat\":\"" + category + "\",\"ph\":\"X\",\"ts\":" + start_ns / 1000 + ",\"dur\":" + Math.max(1, duration_ns / 1000) + ",\"pid\":1,\"tid\":" + thread_id + (args != null ? "," + args : "") + "}";
+    }
+
+    private static boolean appendEvent(StringBuilder json, boolean first, String event) {
+        if (!first) {
+            json.append(",\n");
+        }
+        json.append(event);
+        return false;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,229 @@
+package net.haesleinhuepf.clijx.assistant.batch;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Duplicator;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import net.haesleinhuepf.clijx.assistant.utilities.Logger;
+import net.haesleinhuepf.clijx.assistant.utilities.SoutLogger;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * BatchRunner
+ * <p>
+ * Runs a workflow, e.g. taken from the assistant using AssistantGUIPlugin.getWorkflow(), over many image files
+ * without windows, dialogs or virtual stacks. Files are read and written on a pool of I/O threads while the GPU
+ * processes. Every channel and time point of a file is processed as a stack of its own. Stacks which don't fit
+ * into GPU memory are processed tile by tile. Files which cannot be read, processed or written are counted as failed
+ * and skipped. In the assistant, it's available as "Process folder of images (batch)" in the menu of every node.
+ */
+public class BatchRunner {
+
+    private final CLIJ2 clij2;
+    private final Workflow workflow;
+
+    private int io_threads = 4;
+    private Logger logger = new SoutLogger();
+
+    // the replica is reused as long as consecutive stacks have the same size and type
+    private Workflow replica = null;
+    private ClearCLBuffer replica_input = null;
+
+    public BatchRunner(CLIJ2 clij2, Workflow workflow) {
+        this.clij2 = clij2;
+        this.workflow = workflow;
+    }
+
+    public void setIOThreads(int io_threads) {
+        this.io_threads = Math.max(1, io_threads);
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public static List<File> listImages(File folder) {
+        ArrayList<File> files = new ArrayList<>();
+        File[] list = folder.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                String name = file.getName().toLowerCase();
+                if (file.isFile() && !name.startsWith(".") && (name.endsWith(".tif") || name.endsWith(".tiff"))) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    public void run(File input_folder, File output_folder) {
+        run(listImages(input_folder), output_folder);
+    }
+
+    public void run(List<File> inputs, File output_folder) {
+        output_folder.mkdirs();
+
+        ExecutorService io = Executors.newFixedThreadPool(io_threads, (runnable) -> {
+            Thread thread = new Thread(runnable, "CLIJx-Assistant batch I/O");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ArrayDeque<Future<ImagePlus>> reads = new ArrayDeque<>();
+        ArrayList<Future<?>> writes = new ArrayList<>();
+        // results waiting to be written are kept in memory; the GPU waits if the disc can't keep up
+        Semaphore pending_writes = new Semaphore(io_threads * 2);
+        int next_read = 0;
+
+        long start = System.currentTimeMillis();
+        long read_wait = 0;
+        long compute_time = 0;
+        long bytes = 0;
+        int stacks = 0;
+        int failed = 0;
+
+        try {
+            for (File input : inputs) {
+                // keep the I/O threads busy reading ahead
+                while (next_read < inputs.size() && reads.size() < io_threads * 2) {
+                    File file = inputs.get(next_read);
+                    reads.add(io.submit(() -> IJ.openImage(file.getAbsolutePath())));
+                    next_read++;
+                }
+
+                long time = System.currentTimeMillis();
+                ImagePlus imp;
+                try {
+                    imp = reads.poll().get();
+                } catch (ExecutionException e) {
+                    System.out.println("Exception while reading " + input + ": " + e.getCause());
+                    imp = null;
+                }
+                read_wait += System.currentTimeMillis() - time;
+                if (imp == null) {
+                    logger.log("Cannot read " + input);
+                    failed++;
+                    continue;
+                }
+
+                String name = input.getName().replaceAll("\\.tiff?$", "");
+                boolean split = imp.getNChannels() * imp.getNFrames() > 1;
+                try {
+                    for (int t = 1; t <= imp.getNFrames(); t++) {
+                        for (int c = 1; c <= imp.getNChannels(); c++) {
+                            ImagePlus stack = split ? new Duplicator().run(imp, c, c, 1, imp.getNSlices(), t, t) : imp;
+
+                            time = System.currentTimeMillis();
+                            ImagePlus result;
+                            synchronized (clij2) {
+                                result = process(stack);
+                            }
+                            compute_time += System.currentTimeMillis() - time;
+
+                            bytes += (long) stack.getWidth() * stack.getHeight() * stack.getNSlices() * Math.max(1, stack.getBitDepth() / 8);
+                            stacks++;
+
+                            String filename = output_folder.getAbsolutePath() + File.separator + name + (split ? String.format("_c%d_t%04d", c, t) : "") + ".tif";
+                            pending_writes.acquire();
+                            writes.add(io.submit(() -> {
+                                try {
+                                    if (!IJ.saveAsTiff(result, filename)) {
+                                        throw new IllegalStateException("Cannot write " + filename);
+                                    }
+                                } finally {
+                                    pending_writes.release();
+                                }
+                            }));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. the workflow doesn't accept this image; continue with the next one
+                    logger.log("Cannot process " + input + ": " + e);
+                    e.printStackTrace();
+                    failed++;
+                }
+            }
+
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException e) {
+                    logger.log("Cannot write result: " + e.getCause());
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        } finally {
+            io.shutdown();
+            synchronized (clij2) {
+                releaseReplica();
+            }
+        }
+
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        double megabytes = bytes / 1024.0 / 1024.0;
+        logger.log("Batch processing done");
+        logger.log("Files: " + inputs.size() + " (" + failed + " failed), stacks: " + stacks + ", data: " + String.format("%.1f", megabytes) + " MB");
+        logger.log("Duration: " + String.format("%.1f", seconds) + " s (GPU " + compute_time / 1000.0 + " s, waiting for input " + read_wait / 1000.0 + " s)");
+        logger.log("Throughput: " + String.format("%.2f", stacks / seconds) + " stacks/s, " + String.format("%.1f", megabytes / seconds) + " MB/s");
+    }
+
+    /**
+     * Processes a single stack and returns the result of the last step of the workflow. Stacks which don't fit into
+     * GPU memory are processed tile by tile if all steps are local operations; otherwise an IllegalArgumentException
+     * is thrown.
+     */
+    public ImagePlus process(ImagePlus stack) {
+        TiledExecutor tiled = new TiledExecutor(clij2, workflow);
+        if (!tiled.fitsOnDevice(stack)) {
+            if (tiled.getNonLocalStep() == null) {
+                logger.log(stack.getTitle() + " does not fit on the device; processing it tile by tile with halo " + Arrays.toString(tiled.getHalo()));
+            }
+            releaseReplica();
+            // fails for workflows with global operations, which would give seams or wrong results per tile
+            ImagePlus result = tiled.run(stack);
+            result.setTitle(stack.getTitle());
+            return result;
+        }
+
+        ClearCLBuffer pushed = clij2.push(stack);
+        if (replica == null || !Arrays.equals(replica_input.getDimensions(), pushed.getDimensions()) || replica_input.getNativeType() != pushed.getNativeType()) {
+            releaseReplica();
+            replica_input = clij2.create(pushed);
+            replica = workflow.replicate(clij2, replica_input);
+        }
+        clij2.copy(pushed, replica_input);
+        pushed.close();
+
+        replica.compute();
+        ImagePlus result = clij2.pull(replica.getOutput());
+        result.setTitle(stack.getTitle());
+        result.setCalibration(stack.getCalibration());
+        return result;
+    }
+
+    private void releaseReplica() {
+        if (replica != null) {
+            replica.close();
+            replica_input.close();
+            replica = null;
+            replica_input = null;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package net.haesleinhuepf.clijx.assistant.batch;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clij2.plugins.Copy;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * RecordedWorkflow
+ * <p>
+ * Reads a workflow saved with "Export workflow as groovy (for re-loading)" (AssistantGroovyGenerator) without
+ * executing the script, i.e. without windows, dialogs or a script engine. The graph is kept as a list of steps in
+ * execution order; each step knows its CLIJ plugin, the image IDs it reads and writes and the parameters set in
+ * the script. The images loaded from disc in the script are the inputs of the workflow.
+ */
+public class RecordedWorkflow {
+
+    private static final Pattern OPEN_IMAGE = Pattern.compile("^(\\w+) = .*\\.openImage\\(.*\\);$");
+    private static final Pattern NEW_NODE = Pattern.compile("^node = new ([\\w.$]+)\\((?:new ([\\w.$]+)\\(\\))?\\);$");
+    private static final Pattern SET_SOURCES = Pattern.compile("^node\\.setSources\\((.*)\\);$");
+    private static final Pattern SET_ARG = Pattern.compile("^node\\.getArgs\\(\\)\\[(\\d+)\\] = (.*);$");
+    private static final Pattern GET_TARGET = Pattern.compile("^(\\w+) = node\\.getTarget\\(\\);$");
+
+    public static class Step {
+        final Class<? extends CLIJMacroPlugin> plugin_class;
+        final String[] sources;
+        String target;
+        final HashMap<Integer, Object> arguments = new HashMap<>();
+
+        Step(Class<? extends CLIJMacroPlugin> plugin_class, String[] sources) {
+            this.plugin_class = plugin_class;
+            this.sources = sources;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getName() {
+            return plugin_class.getSimpleName();
+        }
+    }
+
+    private final ArrayList<String> inputs = new ArrayList<>();
+    private final ArrayList<Step> steps = new ArrayList<>();
+
+    public static RecordedWorkflow read(File file) throws IOException {
+        return parse(new String(Files.readAllBytes(file.toPath())));
+    }
+
+    public static RecordedWorkflow parse(String script) {
+        RecordedWorkflow workflow = new RecordedWorkflow();
+        Class<? extends CLIJMacroPlugin> plugin_class = null;
+        Step step = null;
+
+        for (String line : script.split("\n")) {
+            line = line.trim();
+            Matcher matcher;
+            if ((matcher = OPEN_IMAGE.matcher(line)).matches()) {
+                workflow.inputs.add(matcher.group(1));
+            } else if ((matcher = NEW_NODE.matcher(line)).matches()) {
+                plugin_class = getPluginClass(matcher.group(1), matcher.group(2));
+                step = null;
+            } else if ((matcher = SET_SOURCES.matcher(line)).matches()) {
+                if (plugin_class == null) {
+                    throw new IllegalArgumentException("Sources set before node creation: " + line);
+                }
+                step = new Step(plugin_class, matcher.group(1).replace(" ", "").split(","));
+                workflow.steps.add(step);
+            } else if ((matcher = SET_ARG.matcher(line)).matches() && step != null) {
+                step.arguments.put(Integer.parseInt(matcher.group(1)), parseValue(matcher.group(2)));
+            } else if ((matcher = GET_TARGET.matcher(line)).matches() && step != null) {
+                step.target = matcher.group(1);
+            }
+        }
+        return workflow;
+    }
+
+    private static Class<? extends CLIJMacroPlugin> getPluginClass(String node_class_name, String plugin_class_name) {
+        try {
+            if (plugin_class_name != null) {
+                return Class.forName(plugin_class_name).asSubclass(CLIJMacroPlugin.class);
+            }
+            // hand-crafted nodes know their CLIJ plugin
+            AssistantGUIPlugin node = (AssistantGUIPlugin) Class.forName(node_class_name).newInstance();
+            return node.getCLIJMacroPlugin().getClass();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Cannot instantiate " + (plugin_class_name != null ? plugin_class_name : node_class_name), e);
+        }
+    }
+
+    private static Object parseValue(String text) {
+        if (text.startsWith("\"") && text.endsWith("\"")) {
+            return text.substring(1, text.length() - 1);
+        }
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(text);
+        }
+    }
+
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Executes the recorded steps one by one on the given input images, which are assigned to the inputs of the
+     * recording in order. Images are allocated as the steps run; all of them are returned, by image ID, and need to
+     * be released by the caller. If given, the listener is notified after every step.
+     */
+    public LinkedHashMap<String, ClearCLBuffer> execute(CLIJ2 clij2, ClearCLBuffer[] input_buffers, StepListener listener) {
+        LinkedHashMap<String, ClearCLBuffer> images = new LinkedHashMap<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            images.put(inputs.get(i), input_buffers[Math.min(i, input_buffers.length - 1)]);
+        }
+        for (Step step : steps) {
+            long start = System.nanoTime();
+            CLIJMacroPlugin plugin = instantiate(clij2, step);
+            buildArguments(plugin, step, images);
+            if (plugin instanceof CLIJOpenCLProcessor) {
+                ((CLIJOpenCLProcessor) plugin).executeCL();
+            }
+            if (listener != null) {
+                listener.stepFinished(step, images.get(step.target), System.nanoTime() - start);
+            }
+        }
+        return images;
+    }
+
+    public interface StepListener {
+        void stepFinished(Step step, ClearCLBuffer result, long duration_ns);
+    }
+
+    private static CLIJMacroPlugin instantiate(CLIJ2 clij2, Step step) {
+        CLIJMacroPlugin plugin;
+        try {
+            plugin = step.plugin_class.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instantiate " + step.plugin_class.getName(), e);
+        }
+        plugin.setClij(clij2.getCLIJ());
+        if (plugin instanceof AbstractCLIJ2Plugin) {
+            ((AbstractCLIJ2Plugin) plugin).setCLIJ2(clij2);
+        }
+        return plugin;
+    }
+
+    /**
+     * Fills the arguments the way AbstractAssistantGUIPlugin.refresh() does: source images in order, defaults for
+     * parameters the recording doesn't set and a newly created output image.
+     */
+    private static Object[] buildArguments(CLIJMacroPlugin plugin, Step step, HashMap<String, ClearCLBuffer> images) {
+        String[] parameters = plugin.getParameterHelpText().split(",");
+        Object[] default_values = null;
+        if (plugin instanceof AbstractCLIJPlugin) {
+            default_values = ((AbstractCLIJPlugin) plugin).getDefaultValues();
+        }
+
+        Object[] args = new Object[parameters.length];
+        int result_index = -1;
+        int source_count = 0;
+        ClearCLBuffer first_source = null;
+        for (int i = 0; i < parameters.length; i++) {
+            String[] parameterParts = parameters[i].trim().split(" ");
+            String parameterType = parameterParts[0];
+            String parameterName = parameterParts[parameterParts.length - 1];
+            boolean byRef = parameterType.compareTo("ByRef") == 0;
+            if (byRef) {
+                parameterType = parameterParts[1];
+            }
+
+            if (parameterType.compareTo("Image") == 0) {
+                if (byRef || parameterName.contains("destination")) {
+                    result_index = i;
+                } else {
+                    String source = step.sources[Math.min(source_count, step.sources.length - 1)];
+                    args[i] = images.get(source);
+                    if (args[i] == null) {
+                        throw new IllegalArgumentException(step.getName() + " reads " + source + " which is not produced before.");
+                    }
+                    if (first_source == null) {
+                        first_source = (ClearCLBuffer) args[i];
+                    }
+                    source_count++;
+                }
+            } else if (step.arguments.containsKey(i)) {
+                args[i] = step.arguments.get(i);
+            } else if (parameterType.compareTo("String") == 0) {
+                args[i] = default_values != null ? default_values[i] : "";
+            } else if (parameterType.compareTo("Boolean") == 0) {
+                args[i] = new Double(default_values != null && (boolean) default_values[i] ? 1.0 : 0.0);
+            } else {
+                args[i] = default_values != null ? default_values[i] : 2;
+            }
+        }
+
+        plugin.setArgs(args);
+        if (result_index >= 0 && first_source != null) {
+            ClearCLBuffer result = plugin.createOutputBufferFromSource(first_source);
+            args[result_index] = result;
+            images.put(step.target, result);
+        }
+        return args;
+    }
+
+    /**
+     * Returns a Workflow processing the first input, e.g. for BatchRunner or the optimizer. Images of the returned
+     * workflow are allocated for the given input and need to be released by the caller.
+     */
+    public Workflow toWorkflow(CLIJ2 clij2, ClearCLBuffer input) {
+        if (inputs.size() != 1) {
+            throw new IllegalArgumentException("Workflows with " + inputs.size() + " input images can't be converted.");
+        }
+        HashMap<String, ClearCLBuffer> images = new HashMap<>();
+        images.put(inputs.get(0), input);
+
+        CLIJMacroPlugin[] plugins = new CLIJMacroPlugin[steps.size() + 1];
+        Object[][] args = new Object[steps.size() + 1][];
+
+        // starting point; it's not executed
+        Copy copy = new Copy();
+        copy.setClij(clij2.getCLIJ());
+        copy.setCLIJ2(clij2);
+        args[0] = new Object[]{input, input};
+        copy.setArgs(args[0]);
+        plugins[0] = copy;
+
+        for (int i = 0; i < steps.size(); i++) {
+            plugins[i + 1] = instantiate(clij2, steps.get(i));
+            args[i + 1] = buildArguments(plugins[i + 1], steps.get(i), images);
+        }
+        return new Workflow(plugins, args);
+    }
+}
@@ -0,0 +1,272 @@
+package net.haesleinhuepf.clijx.assistant.batch;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.assistant.optimize.ElementwiseFusion;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * TiledExecutor
+ * <p>
+ * Runs a workflow on images which don't fit into GPU memory. The image is split into blocks, each block is
+ * processed together with a halo around it and the inner parts of the results are stitched together. The halo is
+ * derived from the radius and sigma parameters of the steps; tile size is chosen from the available device memory.
+ * <p>
+ * This is only valid for workflows made of local operations keeping the image size, e.g. filters and
+ * thresholding with a constant. Global operations such as automatic thresholding or connected components labeling
+ * give different results per tile; run() refuses workflows containing steps which aren't known to be local.
+ */
+public class TiledExecutor {
+
+    private static double memory_fraction = 0.5;
+
+    // bytes per voxel assumed for every intermediate image
+    private static final int INTERMEDIATE_BYTES_PER_PIXEL = 4;
+
+    // plugin class names of neighborhood filters whose extent is given by their radius or sigma parameters
+    private static final HashSet<String> local_plugins = new HashSet<>(Arrays.asList(
+            "GaussianBlur2D", "GaussianBlur3D", "DifferenceOfGaussian2D", "DifferenceOfGaussian3D",
+            "Mean2DBox", "Mean3DBox", "Mean2DSphere", "Mean3DSphere",
+            "Minimum2DBox", "Minimum3DBox", "Minimum2DSphere", "Minimum3DSphere",
+            "Maximum2DBox", "Maximum3DBox", "Maximum2DSphere", "Maximum3DSphere",
+            "Median2DBox", "Median3DBox", "Median2DSphere", "Median3DSphere",
+            "TopHatBox", "TopHatSphere", "BottomHatBox", "BottomHatSphere"));
+
+    private final CLIJ2 clij2;
+    private final Workflow workflow;
+
+    public TiledExecutor(CLIJ2 clij2, Workflow workflow) {
+        this.clij2 = clij2;
+        this.workflow = workflow;
+    }
+
+    /**
+     * Returns the name of the first step which isn't known to be a local operation, or null if the workflow can be
+     * processed tile by tile. Pixel-wise operations, see ElementwiseFusion, are local as well.
+     */
+    public String getNonLocalStep() {
+        ArrayList<CLIJMacroPlugin> plugins = workflow.getPlugins();
+        for (int i = 1; i < plugins.size(); i++) { // the starting point only copies
+            CLIJMacroPlugin plugin = plugins.get(i);
+            if (!ElementwiseFusion.isElementwise(plugin) && !isLocalPlugin(plugin)) {
+                return plugin.getName();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLocalPlugin(CLIJMacroPlugin plugin) {
+        synchronized (local_plugins) {
+            return local_plugins.contains(plugin.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Declares the plugin with the given class name to be a local operation whose extent is given by its radius or
+     * sigma parameters, so that workflows using it can be processed tile by tile.
+     */
+    public static void addLocalPlugin(String class_name) {
+        synchronized (local_plugins) {
+            local_plugins.add(class_name);
+        }
+    }
+
+    /**
+     * Returns the halo in x, y and z which is necessary for the results within a tile to be identical to the
+     * results of the whole image. The halos of subsequent steps add up.
+     */
+    public int[] getHalo() {
+        int[] halo = new int[3];
+        ArrayList<CLIJMacroPlugin> plugins = workflow.getPlugins();
+        Object[][] args = workflow.getArgs();
+        for (int i = 1; i < plugins.size(); i++) { // the starting point doesn't need a halo
+            int[] step_halo = getHalo(plugins.get(i), args[i]);
+            for (int d = 0; d < 3; d++) {
+                halo[d] += step_halo[d];
+            }
+        }
+        return halo;
+    }
+
+    /**
+     * Returns the halo in x, y and z a single step with the given arguments needs, derived from its radius and
+     * sigma parameters.
+     */
+    public static int[] getHalo(CLIJMacroPlugin plugin, Object[] args) {
+        int[] halo = new int[3];
+        String[] parameterHelpTexts = plugin.getParameterHelpText().split(",");
+        for (int j = 0; j < parameterHelpTexts.length && j < args.length; j++) {
+            String[] parts = parameterHelpTexts[j].trim().split(" ");
+            if (parts.length < 2 || parts[parts.length - 2].compareTo("Number") != 0) {
+                continue;
+            }
+            String name = parts[parts.length - 1].toLowerCase();
+            double value = Math.abs(Double.parseDouble("" + args[j]));
+            int extent;
+            if (name.contains("sigma")) {
+                extent = (int) Math.ceil(3 * value);
+            } else if (name.contains("radius")) {
+                extent = (int) Math.ceil(value);
+            } else {
+                continue;
+            }
+            for (int d = 0; d < 3; d++) {
+                if (appliesToAxis(name, d)) {
+                    halo[d] = Math.max(halo[d], extent);
+                }
+            }
+        }
+        return halo;
+    }
+
+    private static boolean appliesToAxis(String name, int axis) {
+        boolean x = name.endsWith("x");
+        boolean y = name.endsWith("y");
+        boolean z = name.endsWith("z");
+        if (!x && !y && !z) {
+            return true;
+        }
+        return axis == 0 ? x : axis == 1 ? y : z;
+    }
+
+    /**
+     * Returns the size of tiles (without halo) so that input, intermediates and output of a tile fit into the given
+     * number of bytes.
+     */
+    int[] getTileSize(int[] dimensions, int[] halo, int input_bytes_per_pixel, long available_bytes) {
+        long bytes_per_pixel = input_bytes_per_pixel + (long) (workflow.getPlugins().size() - 1) * INTERMEDIATE_BYTES_PER_PIXEL;
+        int[] tile = Arrays.copyOf(dimensions, 3);
+        while (true) {
+            long pixels = 1;
+            for (int d = 0; d < 3; d++) {
+                pixels *= Math.min(dimensions[d], tile[d] + 2 * halo[d]);
+            }
+            if (pixels * bytes_per_pixel <= available_bytes) {
+                return tile;
+            }
+            // halve the largest dimension
+            int largest = 0;
+            for (int d = 1; d < 3; d++) {
+                if (tile[d] > tile[largest]) {
+                    largest = d;
+                }
+            }
+            if (tile[largest] <= 1) {
+                throw new IllegalArgumentException("Halo " + Arrays.toString(halo) + " too large for GPU memory.");
+            }
+            tile[largest] = (tile[largest] + 1) / 2;
+        }
+    }
+
+    public boolean fitsOnDevice(ImagePlus input) {
+        int[] dimensions = {input.getWidth(), input.getHeight(), input.getNSlices()};
+        int[] tile = getTileSize(dimensions, new int[3], input.getBitDepth() / 8, getAvailableBytes());
+        return Arrays.equals(tile, dimensions);
+    }
+
+    private long getAvailableBytes() {
+        return (long) (clij2.getCLIJ().getGPUMemoryInBytes() * memory_fraction);
+    }
+
+    /**
+     * Processes the current channel and time point of the input tile by tile and returns the stitched result of
+     * the last step.
+     */
+    public ImagePlus run(ImagePlus input) {
+        String non_local = getNonLocalStep();
+        if (non_local != null) {
+            throw new IllegalArgumentException(input.getTitle() + " does not fit on the device, and " + non_local + " cannot be processed tile by tile.");
+        }
+        int[] dimensions = {input.getWidth(), input.getHeight(), input.getNSlices()};
+        int[] halo = getHalo();
+        for (int d = 0; d < 3; d++) {
+            halo[d] = Math.min(halo[d], dimensions[d]);
+        }
+        int[] tile = getTileSize(dimensions, halo, input.getBitDepth() / 8, getAvailableBytes());
+
+        ImageStack source = input.getStack();
+        ImageStack current = new ImageStack(dimensions[0], dimensions[1]);
+        for (int z = 1; z <= dimensions[2]; z++) {
+            current.addSlice(source.getProcessor(input.getStackIndex(input.getC(), z, input.getT())));
+        }
+
+        ImageStack result = null;
+        Workflow replica = null;
+        ClearCLBuffer replica_input = null;
+        try {
+            for (int z = 0; z < dimensions[2]; z += tile[2]) {
+                for (int y = 0; y < dimensions[1]; y += tile[1]) {
+                    for (int x = 0; x < dimensions[0]; x += tile[0]) {
+                        int[] position = {x, y, z};
+                        int[] start = new int[3];
+                        int[] size = new int[3];
+                        for (int d = 0; d < 3; d++) {
+                            start[d] = Math.max(0, position[d] - halo[d]);
+                            int end = Math.min(dimensions[d], position[d] + tile[d] + halo[d]);
+                            size[d] = end - start[d];
+                        }
+
+                        ImageStack block = current.crop(start[0], start[1], start[2], size[0], size[1], size[2]);
+                        ClearCLBuffer pushed = clij2.push(new ImagePlus("tile", block));
+                        if (replica == null || !Arrays.equals(replica_input.getDimensions(), pushed.getDimensions())) {
+                            if (replica != null) {
+                                replica.close();
+                                replica_input.close();
+                            }
+                            replica_input = clij2.create(pushed);
+                            replica = workflow.replicate(clij2, replica_input);
+                        }
+                        clij2.copy(pushed, replica_input);
+                        pushed.close();
+                        replica.compute();
+
+                        ClearCLBuffer output = replica.getOutput();
+                        if (!Arrays.equals(output.getDimensions(), replica_input.getDimensions())) {
+                            throw new IllegalArgumentException("Tiled execution requires all steps to keep the image size.");
+                        }
+                        ImageStack processed = clij2.pull(output).getStack();
+                        if (result == null) {
+                            result = ImageStack.create(dimensions[0], dimensions[1], dimensions[2], processed.getBitDepth());
+                        }
+
+                        // copy the inner part without halo into the result
+                        int inner_width = Math.min(tile[0], dimensions[0] - x);
+                        int inner_height = Math.min(tile[1], dimensions[1] - y);
+                        int inner_depth = Math.min(tile[2], dimensions[2] - z);
+                        ImageStack inner = processed.crop(x - start[0], y - start[1], z - start[2], inner_width, inner_height, inner_depth);
+                        for (int s = 0; s < inner_depth; s++) {
+                            result.getProcessor(z + s + 1).insert(inner.getProcessor(s + 1), x, y);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (replica != null) {
+                replica.close();
+                replica_input.close();
+            }
+        }
+
+        ImagePlus imp = new ImagePlus("Result of " + input.getTitle(), result);
+        imp.setCalibration(input.getCalibration());
+        return imp;
+    }
+
+    public static double getMemoryFraction() {
+        return memory_fraction;
+    }
+
+    /**
+     * @param fraction fraction of the device memory a tile including intermediate results may use
+     */
+    public static void setMemoryFraction(double fraction) {
+        memory_fraction = fraction;
+    }
+}
@@ -0,0 +1,252 @@
+package net.haesleinhuepf.clijx.assistant.batch;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import net.haesleinhuepf.clijx.assistant.utilities.Logger;
+import net.haesleinhuepf.clijx.assistant.utilities.SoutLogger;
+import net.haesleinhuepf.spimcat.io.StagedUpload;
+import net.haesleinhuepf.spimcat.io.VirtualRawStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * TimelapsePipeline
+ * <p>
+ * Processes all time points of a time series with a workflow in three overlapping stages: a reader thread loads
+ * time point t+1 from disc and uploads it to the GPU, the calling thread runs the workflow on t and a writer thread
+ * saves the result of t-1. Stages are connected by bounded queues, so that a fast reader can't run out of memory
+ * while the GPU is busy. In steady state, throughput is limited by the slowest stage.
+ * <p>
+ * GPU calls of both the reader and the compute stage hold the lock of the CLIJx instance, like the assistant's
+ * refreshes do, so that the pipeline can run while the interactive graph is in use.
+ */
+public class TimelapsePipeline {
+
+    private final CLIJ2 clij2;
+    private final Workflow workflow;
+
+    private int queue_length = 2;
+    private Logger logger = new SoutLogger();
+
+    private static class Frame {
+        static final Frame END = new Frame(-1);
+
+        final int t;
+        ClearCLBuffer pushed;
+        ImagePlus result;
+
+        Frame(int t) {
+            this.t = t;
+        }
+    }
+
+    public TimelapsePipeline(CLIJ2 clij2, Workflow workflow) {
+        this.clij2 = clij2;
+        this.workflow = workflow;
+    }
+
+    /**
+     * @param queue_length number of time points which may wait between two stages
+     */
+    public void setQueueLength(int queue_length) {
+        this.queue_length = Math.max(1, queue_length);
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Processes the given channel (1-based) of all time points of the source and saves results as tif files.
+     */
+    public void run(ImagePlus source, int channel, File output_folder) {
+        if (source.getBitDepth() == 24) {
+            throw new IllegalArgumentException("RGB images are not supported.");
+        }
+        output_folder.mkdirs();
+
+        BlockingQueue<Frame> pushed = new ArrayBlockingQueue<>(queue_length);
+        BlockingQueue<Frame> computed = new ArrayBlockingQueue<>(queue_length);
+
+        long[] read_time = {0};
+        long[] write_time = {0};
+        long compute_time = 0;
+
+        Thread reader = new Thread(() -> {
+            Frame frame = null;
+            boolean interrupted = false;
+            try {
+                for (int t = 1; t <= source.getNFrames(); t++) {
+                    long time = System.currentTimeMillis();
+                    frame = new Frame(t);
+                    frame.pushed = read(source, channel, t);
+                    read_time[0] += System.currentTimeMillis() - time;
+                    pushed.put(frame);
+                    frame = null;
+                }
+            } catch (InterruptedException e) {
+                // the compute stage stopped and takes no more frames
+                interrupted = true;
+                close(frame);
+            } catch (RuntimeException e) {
+                logger.log("Reading failed: " + e);
+                e.printStackTrace();
+                close(frame);
+            } finally {
+                if (!interrupted) {
+                    putQuietly(pushed, Frame.END);
+                }
+            }
+        }, "CLIJx-Assistant pipeline reader");
+
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Frame frame = computed.take();
+                    if (frame == Frame.END) {
+                        return;
+                    }
+                    long time = System.currentTimeMillis();
+                    try {
+                        IJ.saveAsTiff(frame.result, output_folder.getAbsolutePath() + File.separator + String.format("t%04d.tif", frame.t));
+                    } catch (RuntimeException e) {
+                        // keep taking frames; otherwise the compute stage would block
+                        logger.log("Saving time point " + frame.t + " failed: " + e);
+                        e.printStackTrace();
+                    }
+                    write_time[0] += System.currentTimeMillis() - time;
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, "CLIJx-Assistant pipeline writer");
+
+        long start = System.currentTimeMillis();
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+
+        Workflow replica = null;
+        ClearCLBuffer replica_input = null;
+        Frame frame = null;
+        int count = 0;
+        try {
+            while (true) {
+                frame = pushed.take();
+                if (frame == Frame.END) {
+                    break;
+                }
+                long time = System.currentTimeMillis();
+                synchronized (CLIJx.getInstance()) {
+                    if (replica == null) {
+                        replica_input = clij2.create(frame.pushed);
+                        replica = workflow.replicate(clij2, replica_input);
+                    }
+                    clij2.copy(frame.pushed, replica_input);
+                    frame.pushed.close();
+                    frame.pushed = null;
+
+                    replica.compute();
+                    frame.result = clij2.pull(replica.getOutput());
+                }
+                frame.result.setCalibration(source.getCalibration());
+                compute_time += System.currentTimeMillis() - time;
+
+                computed.put(frame);
+                frame = null;
+                count++;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            // on failure, the reader may be blocked in put() with uploaded frames in the queue
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            close(frame);
+            for (Frame queued : pushed) {
+                close(queued);
+            }
+            pushed.clear();
+
+            putQuietly(computed, Frame.END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            synchronized (CLIJx.getInstance()) {
+                if (replica != null) {
+                    replica.close();
+                }
+                if (replica_input != null) {
+                    replica_input.close();
+                }
+            }
+        }
+
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        logger.log("Processed " + count + " time points in " + String.format("%.1f", seconds) + " s (" + String.format("%.2f", count / seconds) + " time points/s)");
+        logger.log("Stage busy times: read+upload " + read_time[0] / 1000.0 + " s, compute+download " + compute_time / 1000.0 + " s, write " + write_time[0] / 1000.0 + " s");
+    }
+
+    /**
+     * Loads a time point and uploads it. Only buffer allocation and transfer happen here, no kernels, so that the
+     * compute stage can run at the same time.
+     */
+    private ClearCLBuffer read(ImagePlus source, int channel, int t) {
+        ImageStack stack = source.getStack();
+        if (stack instanceof VirtualRawStack && ((VirtualRawStack) stack).isMemoryMapped() && source.getNChannels() == 1) {
+            try {
+                synchronized (CLIJx.getInstance()) {
+                    return ((VirtualRawStack) stack).push(clij2, t - 1);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int depth = source.getNSlices();
+        int bytes_per_pixel = source.getBitDepth() / 8;
+        NativeTypeEnum type = bytes_per_pixel == 1 ? NativeTypeEnum.UnsignedByte : bytes_per_pixel == 2 ? NativeTypeEnum.UnsignedShort : NativeTypeEnum.Float;
+
+        int[] plane_indices = new int[depth];
+        for (int z = 1; z <= depth; z++) {
+            plane_indices[z - 1] = source.getStackIndex(channel, z, t);
+        }
+        // takes the CLIJx lock for allocation and transfer only; packing happens outside
+        return StagedUpload.push(clij2, stack, plane_indices, depth > 1 ? new long[]{width, height, depth} : new long[]{width, height}, type);
+    }
+
+    private static void close(Frame frame) {
+        if (frame != null && frame.pushed != null) {
+            synchronized (CLIJx.getInstance()) {
+                frame.pushed.close();
+            }
+            frame.pushed = null;
+        }
+    }
+
+    private static void putQuietly(BlockingQueue<Frame> queue, Frame frame) {
+        try {
+            queue.put(frame);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
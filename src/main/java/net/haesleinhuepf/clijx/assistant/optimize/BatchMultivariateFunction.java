@@ -0,0 +1,17 @@
+package net.haesleinhuepf.clijx.assistant.optimize;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * BatchMultivariateFunction
+ * <p>
+ * A fitness function which evaluates several parameter sets at once, e.g. concurrently on replicated workflows.
+ * GradientOfMultivariateFunction hands over all points of a central-difference gradient in one batch.
+ */
+public interface BatchMultivariateFunction extends MultivariateFunction {
+
+    /**
+     * Returns the values at the given points, in the same order.
+     */
+    double[] value(double[][] points);
+}
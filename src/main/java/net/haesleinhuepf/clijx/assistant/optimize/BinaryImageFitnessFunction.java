@@ -1,12 +1,13 @@
 package net.haesleinhuepf.clijx.assistant.optimize;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij2.CLIJ2;
-import org.apache.commons.math3.analysis.MultivariateFunction;
+import net.haesleinhuepf.clijx.CLIJx;
 
-import java.util.Arrays;
+import java.util.HashMap;
 
-public class BinaryImageFitnessFunction implements MultivariateFunction {
+public class BinaryImageFitnessFunction implements ReplicableFunction {
 
     private CLIJ2 clij2;
     private Workflow workflow;
@@ -18,6 +19,13 @@ public class BinaryImageFitnessFunction implements MultivariateFunction {
 
     private int num_dimensions = 0;
 
+    // images and workflow allocated by replicate(); released in close()
+    private ClearCLBuffer[] owned_images = new ClearCLBuffer[0];
+    private boolean owns_workflow = false;
+
+    // squared error per row (y, z), allocated with the first evaluation
+    private ClearCLBuffer row_sums = null;
+
     public BinaryImageFitnessFunction(CLIJ2 clij2, Workflow workflow, int[] parameter_index_map, ClearCLBuffer ground_truth, ClearCLBuffer mask) {
         this.clij2 = clij2;
         this.workflow = workflow;
@@ -38,7 +46,16 @@ public class BinaryImageFitnessFunction implements MultivariateFunction {
 
     @Override
     public double value(double[] doubles) {
-        System.out.print("Try: " + Arrays.toString(doubles));
+        if (clij2 == CLIJx.getInstance()) {
+            // the assistant's context; previews and plane transfers may use it concurrently
+            synchronized (clij2) {
+                return evaluate(doubles);
+            }
+        }
+        return evaluate(doubles);
+    }
+
+    private double evaluate(double[] doubles) {
         for (int i = 0; i < doubles.length; i++) {
             for (int j = 0; j < plugin_indices.length; j++) {
                 if (i == parameter_index_map[j]) {
@@ -50,27 +67,34 @@ public class BinaryImageFitnessFunction implements MultivariateFunction {
                 }
             }
         }
-        workflow.compute();
-
-        ClearCLBuffer temp1 = clij2.create(ground_truth);
-        ClearCLBuffer temp2 = clij2.create(ground_truth);
+        // steps before the first changed parameter keep their results
+        workflow.update();
 
         //clij2.show(workflow.getOutput(), "output");
 
-        clij2.copy(workflow.getOutput(), temp1);
-        clij2.addImageAndScalar(temp1, temp2, 1);
-        clij2.mask(temp2, mask, temp1);
-
-        //clij2.show(temp1, "temp1");
-        //clij2.show(ground_truth, "grout");
+        return meanSquaredError(workflow.getOutput());
+    }
 
-        double result_mse = clij2.meanSquaredError(temp1, ground_truth);
+    /**
+     * Mean squared error between the ground truth and the binary result + 1 within the mask, 0 outside. It's
+     * computed in one pass summing up rows, followed by a reduction of the row sums on the GPU; only the total is
+     * read back.
+     */
+    private double meanSquaredError(ClearCLBuffer output) {
+        long height = ground_truth.getHeight();
+        long depth = ground_truth.getDimension() > 2 ? ground_truth.getDepth() : 1;
+        if (row_sums == null) {
+            row_sums = clij2.create(new long[]{height, depth}, NativeTypeEnum.Float);
+        }
 
-        temp1.close();
-        temp2.close();
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("dst", row_sums);
+        parameters.put("src", output);
+        parameters.put("ground_truth", ground_truth);
+        parameters.put("mask", mask);
+        clij2.execute(BinaryImageFitnessFunction.class, "masked_squared_error_x.cl", "masked_squared_error_row_sum", row_sums.getDimensions(), row_sums.getDimensions(), parameters);
 
-        System.out.println(" -> " + result_mse);
-        return result_mse;
+        return clij2.sumOfAllPixels(row_sums) / (ground_truth.getWidth() * height * depth);
     }
 
     public double[] getCurrent() {
@@ -92,4 +116,53 @@ public class BinaryImageFitnessFunction implements MultivariateFunction {
     public int getNumDimensions() {
         return num_dimensions;
     }
+
+    @Override
+    public CLIJ2 getCLIJ2() {
+        return clij2;
+    }
+
+    @Override
+    public BinaryImageFitnessFunction replicate(CLIJ2 other) {
+        ClearCLBuffer input = transfer(other, workflow.getInput());
+        ClearCLBuffer other_ground_truth = transfer(other, ground_truth);
+        ClearCLBuffer other_mask = transfer(other, mask);
+        Workflow replica;
+        try {
+            replica = workflow.replicate(other, input);
+        } catch (RuntimeException e) {
+            input.close();
+            other_ground_truth.close();
+            other_mask.close();
+            throw e;
+        }
+
+        BinaryImageFitnessFunction function = new BinaryImageFitnessFunction(other, replica, parameter_index_map, other_ground_truth, other_mask);
+        function.owned_images = new ClearCLBuffer[]{input, other_ground_truth, other_mask};
+        function.owns_workflow = true;
+        return function;
+    }
+
+    private ClearCLBuffer transfer(CLIJ2 other, ClearCLBuffer buffer) {
+        return other.push(clij2.pull(buffer));
+    }
+
+    /**
+     * Releases the images allocated for evaluation, and for replicas also their workflow, input and ground truth.
+     */
+    @Override
+    public void close() {
+        if (row_sums != null) {
+            row_sums.close();
+            row_sums = null;
+        }
+        if (owns_workflow) {
+            workflow.close();
+            owns_workflow = false;
+        }
+        for (ClearCLBuffer image : owned_images) {
+            image.close();
+        }
+        owned_images = new ClearCLBuffer[0];
+    }
 }
@@ -0,0 +1,158 @@
+package net.haesleinhuepf.clijx.assistant.optimize;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * ElementwiseFusion
+ * <p>
+ * Detects consecutive pixel-wise operations in a workflow, e.g. addImageAndScalar followed by greaterConstant, and
+ * executes them as one generated OpenCL kernel. This saves a kernel launch and a full read and write of the image
+ * per step. Parameters are handed over as kernel arguments, so the generated code only depends on the chain of
+ * operations and image types and is cached by that signature.
+ */
+public class ElementwiseFusion {
+
+    // plugin class name -> expression of the pixel value v; %2, %3 stand for the numeric parameters at that index
+    private static final HashMap<String, String> expressions = new HashMap<>();
+    static {
+        expressions.put("Copy", "v");
+        expressions.put("AddImageAndScalar", "v + %2");
+        expressions.put("MultiplyImageAndScalar", "v * %2");
+        expressions.put("SubtractImageFromScalar", "%2 - v");
+        expressions.put("Absolute", "fabs(v)");
+        expressions.put("Power", "pow(v, %2)");
+        expressions.put("GreaterConstant", "(v > %2 ? 1.0f : 0.0f)");
+        expressions.put("GreaterOrEqualConstant", "(v >= %2 ? 1.0f : 0.0f)");
+        expressions.put("SmallerConstant", "(v < %2 ? 1.0f : 0.0f)");
+        expressions.put("SmallerOrEqualConstant", "(v <= %2 ? 1.0f : 0.0f)");
+        expressions.put("EqualConstant", "(v == %2 ? 1.0f : 0.0f)");
+        expressions.put("NotEqualConstant", "(v != %2 ? 1.0f : 0.0f)");
+        expressions.put("WithinIntensityRange", "(v > %2 && v < %3 ? 1.0f : 0.0f)");
+    }
+
+    // chain signature -> generated code
+    private static final HashMap<String, String> code_cache = new HashMap<>();
+
+    private static boolean enabled = true;
+
+    public static boolean isElementwise(CLIJMacroPlugin plugin) {
+        return expressions.containsKey(plugin.getClass().getSimpleName());
+    }
+
+    /**
+     * Returns the ranges [first, last] of steps which can be executed as one kernel. A step joins the range of its
+     * predecessor if it reads the predecessor's output and nobody else in the workflow does. The starting point is
+     * never part of a range.
+     */
+    static ArrayList<int[]> plan(ArrayList<CLIJMacroPlugin> plugins, ArrayList<Object[]> parameters) {
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int first = -1;
+        for (int i = 1; i < plugins.size(); i++) {
+            boolean joins = first >= 0 && isElementwise(plugins.get(i)) &&
+                    parameters.get(i)[0] == parameters.get(i - 1)[1] &&
+                    countReferences(parameters, parameters.get(i - 1)[1]) == 2;
+            if (!joins) {
+                if (first >= 0 && i - 1 > first) {
+                    ranges.add(new int[]{first, i - 1});
+                }
+                first = isElementwise(plugins.get(i)) ? i : -1;
+            }
+        }
+        if (first >= 0 && plugins.size() - 1 > first) {
+            ranges.add(new int[]{first, plugins.size() - 1});
+        }
+        return ranges;
+    }
+
+    private static int countReferences(ArrayList<Object[]> parameters, Object buffer) {
+        int count = 0;
+        for (Object[] args : parameters) {
+            for (Object arg : args) {
+                if (arg == buffer) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Executes the steps first to last (inclusive) as one kernel writing into the output of the last step.
+     */
+    static void execute(CLIJ2 clij2, ArrayList<CLIJMacroPlugin> plugins, ArrayList<Object[]> parameters, int first, int last) {
+        ClearCLBuffer input = (ClearCLBuffer) parameters.get(first)[0];
+        ClearCLBuffer output = (ClearCLBuffer) parameters.get(last)[1];
+
+        StringBuilder signature = new StringBuilder();
+        for (int i = first; i <= last; i++) {
+            signature.append(plugins.get(i).getClass().getSimpleName()).append(":").append(((ClearCLBuffer) parameters.get(i)[1]).getNativeType()).append(" ");
+        }
+
+        String code;
+        synchronized (code_cache) {
+            code = code_cache.get(signature.toString());
+            if (code == null) {
+                code = generate(plugins, parameters, first, last);
+                code_cache.put(signature.toString(), code);
+            }
+        }
+
+        HashMap<String, Object> images_and_numbers = new HashMap<>();
+        images_and_numbers.put("image1", input);
+        images_and_numbers.put("image2", output);
+        for (int i = first; i <= last; i++) {
+            Object[] args = parameters.get(i);
+            for (int j = 2; j < args.length; j++) {
+                if (args[j] instanceof Number) {
+                    images_and_numbers.put(parameterName(i - first, j), ((Number) args[j]).floatValue());
+                }
+            }
+        }
+        clij2.customOperation(code, "", images_and_numbers);
+    }
+
+    private static String generate(ArrayList<CLIJMacroPlugin> plugins, ArrayList<Object[]> parameters, int first, int last) {
+        StringBuilder code = new StringBuilder();
+        code.append("float v = READ_IMAGE(image1, sampler, POS_image1_INSTANCE(x, y, z, 0)).x;\n");
+        for (int i = first; i <= last; i++) {
+            String expression = expressions.get(plugins.get(i).getClass().getSimpleName());
+            for (int j = 2; j < parameters.get(i).length; j++) {
+                expression = expression.replace("%" + j, parameterName(i - first, j));
+            }
+            code.append("v = ").append(expression).append(";\n");
+            if (i < last) {
+                // emulate the type of the intermediate image which is skipped
+                code.append(saturate(((ClearCLBuffer) parameters.get(i)[1]).getNativeType()));
+            }
+        }
+        code.append("WRITE_IMAGE(image2, POS_image2_INSTANCE(x, y, z, 0), CONVERT_image2_PIXEL_TYPE(v));\n");
+        return code.toString();
+    }
+
+    private static String saturate(NativeTypeEnum type) {
+        if (type == NativeTypeEnum.UnsignedByte) {
+            return "v = (float) convert_uchar_sat(v);\n";
+        } else if (type == NativeTypeEnum.UnsignedShort) {
+            return "v = (float) convert_ushort_sat(v);\n";
+        }
+        return "";
+    }
+
+    private static String parameterName(int step, int index) {
+        return "p" + step + "_" + index;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ElementwiseFusion.enabled = enabled;
+    }
+}
@@ -0,0 +1,215 @@
+package net.haesleinhuepf.clijx.assistant.optimize;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.assistant.utilities.Logger;
+import net.haesleinhuepf.spimcat.io.BufferPool;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+/**
+ * FitnessWorkers
+ * <p>
+ * A fitness function and replicas of it on the other OpenCL devices, e.g. a second GPU, for evaluating parameter
+ * sets concurrently. Every replica works on its own copy of workflow, input and ground truth in its own context and
+ * is used by one thread at a time. The best parameters any of them evaluated are kept.
+ * <p>
+ * By default, all GPUs are used. Devices are identified by name; several devices with the same name end up in
+ * separate contexts on the first of them.
+ */
+public class FitnessWorkers {
+
+    // null means all GPUs
+    private static String[] device_names = null;
+
+    private final ArrayList<MultivariateFunction> functions = new ArrayList<>();
+    private final ArrayList<ReplicableFunction> replicas = new ArrayList<>();
+    private final ArrayList<CLIJ2> contexts = new ArrayList<>();
+    private final LinkedBlockingQueue<MultivariateFunction> idle = new LinkedBlockingQueue<>();
+    private ExecutorService pool = null;
+
+    private double[] best_point = null;
+    private double best_value = Double.MAX_VALUE;
+
+    private FitnessWorkers() {
+    }
+
+    /**
+     * Replicates the fitness function to all other devices. If it can't be replicated, there is one worker only.
+     */
+    public static FitnessWorkers create(MultivariateFunction fitness, Logger logger) {
+        FitnessWorkers workers = new FitnessWorkers();
+        workers.add(fitness);
+
+        if (fitness instanceof ReplicableFunction && ((ReplicableFunction) fitness).getCLIJ2() != null) {
+            ReplicableFunction original = (ReplicableFunction) fitness;
+            String own_device = original.getCLIJ2().getGPUName();
+            boolean own_device_skipped = false;
+            for (String device : device_names != null ? Arrays.asList(device_names) : CLIJ.getAvailableDeviceNames()) {
+                if (!own_device_skipped && device.compareTo(own_device) == 0) {
+                    own_device_skipped = true;
+                    continue;
+                }
+                if (device_names == null && (device.contains("CPU") || device.contains("pthread"))) {
+                    // a slow device would make the others wait for it at the end of every round
+                    continue;
+                }
+                CLIJ2 clij2 = null;
+                try {
+                    clij2 = new CLIJ2(new CLIJ(device));
+                    ReplicableFunction replica = original.replicate(clij2);
+                    workers.contexts.add(clij2);
+                    workers.replicas.add(replica);
+                    workers.add(replica);
+                    logger.log("Worker on " + clij2.getGPUName());
+                } catch (Exception e) {
+                    logger.log("Cannot use " + device + " for optimization: " + e.getMessage());
+                    if (clij2 != null) {
+                        BufferPool.remove(clij2);
+                        clij2.close();
+                    }
+                }
+            }
+        }
+
+        final int size = workers.functions.size();
+        workers.pool = Executors.newFixedThreadPool(size, (runnable) -> {
+            Thread thread = new Thread(runnable, "CLIJx-Assistant optimization worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return workers;
+    }
+
+    private void add(MultivariateFunction function) {
+        // every evaluation updates the best value seen so far
+        MultivariateFunction recording = (point) -> {
+            double value = function.value(point);
+            record(point, value);
+            return value;
+        };
+        functions.add(recording);
+        idle.add(recording);
+    }
+
+    private synchronized void record(double[] point, double value) {
+        if (value < best_value) {
+            best_value = value;
+            best_point = point.clone();
+        }
+    }
+
+    public int size() {
+        return functions.size();
+    }
+
+    /**
+     * Runs the given tasks concurrently; every task gets a function for its exclusive use while it runs. Results
+     * are returned in the order of the tasks; tasks which failed have null as result.
+     */
+    public <T> ArrayList<T> run(List<Function<MultivariateFunction, T>> tasks) {
+        ArrayList<Future<T>> futures = new ArrayList<>();
+        for (Function<MultivariateFunction, T> task : tasks) {
+            futures.add(pool.submit(() -> {
+                MultivariateFunction function = idle.take();
+                try {
+                    return task.apply(function);
+                } finally {
+                    idle.add(function);
+                }
+            }));
+        }
+
+        ArrayList<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                System.out.println("Optimization task failed: " + e.getCause());
+                e.getCause().printStackTrace();
+                results.add(null);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates the fitness at all given points concurrently.
+     */
+    public double[] evaluate(double[][] points) {
+        ArrayList<Function<MultivariateFunction, Double>> tasks = new ArrayList<>();
+        for (double[] point : points) {
+            tasks.add((function) -> function.value(point));
+        }
+        ArrayList<Double> values = run(tasks);
+        double[] result = new double[points.length];
+        for (int i = 0; i < result.length; i++) {
+            if (values.get(i) == null) {
+                throw new IllegalStateException("Evaluation at " + Arrays.toString(points[i]) + " failed.");
+            }
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a function evaluating batches concurrently on all workers and single points on the next idle one. It
+     * must not be used within tasks handed to run(), which occupy a worker already.
+     */
+    public BatchMultivariateFunction asBatchFunction() {
+        return new BatchMultivariateFunction() {
+            @Override
+            public double[] value(double[][] points) {
+                return evaluate(points);
+            }
+
+            @Override
+            public double value(double[] point) {
+                return evaluate(new double[][]{point})[0];
+            }
+        };
+    }
+
+    public synchronized double[] getBestPoint() {
+        return best_point == null ? null : best_point.clone();
+    }
+
+    public synchronized double getBestValue() {
+        return best_value;
+    }
+
+    /**
+     * Releases replicas and the contexts created for them. The original fitness function stays untouched.
+     */
+    public void close() {
+        pool.shutdown();
+        for (ReplicableFunction replica : replicas) {
+            replica.close();
+        }
+        replicas.clear();
+        for (CLIJ2 clij2 : contexts) {
+            BufferPool.remove(clij2);
+            clij2.close();
+        }
+        contexts.clear();
+    }
+
+    /**
+     * @param names OpenCL devices to use for optimization besides the one the workflow runs on; null for all
+     */
+    public static void setDeviceNames(String[] names) {
+        device_names = names;
+    }
+}
@@ -15,11 +15,16 @@ import org.apache.commons.math3.random.UncorrelatedRandomVectorGenerator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.function.Function;
 
 import static net.haesleinhuepf.clijx.assistant.optimize.OptimizationUtilities.range;
 
 public class GradientDescentOptimizer implements Optimizer {
     int iterations = 6;
+    boolean parallel = false;
+    boolean batched_gradients = false;
+    private static final int nbStarts = 10;
+
     public GradientDescentOptimizer() {
 
     }
@@ -27,31 +32,97 @@ public class GradientDescentOptimizer implements Optimizer {
         this.iterations = iterations;
     }
 
+    /**
+     * @param parallel if true, the starts are distributed to replicas of the fitness function on all GPUs, see
+     *                 FitnessWorkers
+     */
+    public GradientDescentOptimizer(int iterations, boolean parallel) {
+        this.iterations = iterations;
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param batched_gradients if true, the starts run one after the other and the points of every gradient are
+     *                          evaluated concurrently on the replicas instead, see FitnessWorkers.asBatchFunction().
+     *                          This keeps more GPUs busy than there are starts, and pays off for workflows with many
+     *                          parameters.
+     */
+    public GradientDescentOptimizer(int iterations, boolean parallel, boolean batched_gradients) {
+        this.iterations = iterations;
+        this.parallel = parallel;
+        this.batched_gradients = batched_gradients;
+    }
+
     @Override
     public double[] optimize(double[] current, Workflow workflow, int[] parameter_index_map, MultivariateFunction fitness, Logger logger) {
         GradientMultivariateOptimizer underlying = new NonLinearConjugateGradientOptimizer(NonLinearConjugateGradientOptimizer.Formula.POLAK_RIBIERE, new SimpleValueChecker(1e-10, 1e-10));
 
         logger.log("Start:        " + Arrays.toString(current) + "\t");
 
-        for (int i = 0; i < iterations; i++) {
+        FitnessWorkers workers = parallel ? FitnessWorkers.create(fitness, logger) : null;
+        try {
+            for (int i = 0; i < iterations; i++) {
+
+                double[] stdDev = range(current.length, workflow.getNumericParameterNames(), parameter_index_map, Math.pow(2, iterations / 2 - i - 1));
+                System.out.println("Stddevs: " + Arrays.toString(stdDev));
 
-            double[] stdDev = range(current.length, workflow.getNumericParameterNames(), parameter_index_map, Math.pow(2, iterations / 2 - i - 1));
-            System.out.println("Stddevs: " + Arrays.toString(stdDev) );
 
+                RandomVectorGenerator generator = new UncorrelatedRandomVectorGenerator(current, stdDev, new GaussianRandomGenerator(new JDKRandomGenerator()));
+                PointValuePair solution;
+                if (workers != null && workers.size() > 1 && batched_gradients) {
+                    MultiStartMultivariateOptimizer optimizer = new MultiStartMultivariateOptimizer(underlying, nbStarts, generator);
 
-            RandomVectorGenerator generator = new UncorrelatedRandomVectorGenerator(current, stdDev, new GaussianRandomGenerator(new JDKRandomGenerator()));
-            int nbStarts = 10;
-            MultiStartMultivariateOptimizer optimizer = new MultiStartMultivariateOptimizer(underlying, nbStarts, generator);
+                    BatchMultivariateFunction function = workers.asBatchFunction();
+                    solution = optimizer.optimize(new MaxEval(1000), new ObjectiveFunction(function), new ObjectiveFunctionGradient(new GradientOfMultivariateFunction(function, stdDev)), GoalType.MINIMIZE, new InitialGuess(current));
+                } else if (workers != null && workers.size() > 1) {
+                    solution = optimizeStartsInParallel(workers, current, stdDev, generator);
+                } else {
+                    MultiStartMultivariateOptimizer optimizer = new MultiStartMultivariateOptimizer(underlying, nbStarts, generator);
 
-            PointValuePair solution = optimizer.optimize(new MaxEval(1000), new ObjectiveFunction(fitness), new ObjectiveFunctionGradient(new GradientOfMultivariateFunction(fitness, stdDev)), GoalType.MINIMIZE, new InitialGuess(current));
+                    solution = optimizer.optimize(new MaxEval(1000), new ObjectiveFunction(fitness), new ObjectiveFunctionGradient(new GradientOfMultivariateFunction(fitness, stdDev)), GoalType.MINIMIZE, new InitialGuess(current));
+                }
 
-            current = solution.getKey();
+                current = solution.getKey();
 
-            logger.log("Intermediate: " + Arrays.toString(current) + "\t f = " + solution.getValue());
+                logger.log("Intermediate: " + Arrays.toString(current) + "\t f = " + solution.getValue());
+            }
+        } finally {
+            if (workers != null) {
+                workers.close();
+            }
         }
         logger.log("Final:        " + Arrays.toString(current) + "\t");
 
         return current;
     }
 
+    // like MultiStartMultivariateOptimizer: the first start is the current point, the others are random around it
+    private static PointValuePair optimizeStartsInParallel(FitnessWorkers workers, double[] current, double[] stdDev, RandomVectorGenerator generator) {
+        ArrayList<Function<MultivariateFunction, PointValuePair>> starts = new ArrayList<>();
+        for (int s = 0; s < nbStarts; s++) {
+            double[] start = s == 0 ? current : generator.nextVector();
+            starts.add((function) -> {
+                // optimizers keep state; every start needs its own
+                GradientMultivariateOptimizer optimizer = new NonLinearConjugateGradientOptimizer(NonLinearConjugateGradientOptimizer.Formula.POLAK_RIBIERE, new SimpleValueChecker(1e-10, 1e-10));
+                return optimizer.optimize(new MaxEval(1000), new ObjectiveFunction(function), new ObjectiveFunctionGradient(new GradientOfMultivariateFunction(function, stdDev)), GoalType.MINIMIZE, new InitialGuess(start));
+            });
+        }
+
+        PointValuePair best = null;
+        for (PointValuePair solution : workers.run(starts)) {
+            if (solution != null && (best == null || solution.getValue() < best.getValue())) {
+                best = solution;
+            }
+        }
+        // a point evaluated on the way, e.g. by a start which ran out of evaluations, may be even better
+        double[] best_point = workers.getBestPoint();
+        if (best_point != null && (best == null || workers.getBestValue() < best.getValue())) {
+            best = new PointValuePair(best_point, workers.getBestValue());
+        }
+        if (best == null) {
+            throw new IllegalStateException("All starts failed.");
+        }
+        return best;
+    }
+
 }
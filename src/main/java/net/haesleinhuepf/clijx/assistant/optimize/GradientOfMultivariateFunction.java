@@ -14,18 +14,29 @@ public class GradientOfMultivariateFunction implements MultivariateVectorFunctio
 
     @Override
     public double[] value(double[] point) throws IllegalArgumentException {
-        double[] result = new double[point.length];
-        for (int i = 0; i < result.length; i++) {
-            double[] input = new double[point.length];
-
-            System.arraycopy(point, 0, input, 0, input.length);
-            input[i] -= steps[i];
-            double a = function.value(input);
+        // point - step and point + step in every dimension
+        double[][] inputs = new double[2 * point.length][];
+        for (int i = 0; i < point.length; i++) {
+            inputs[2 * i] = point.clone();
+            inputs[2 * i][i] -= steps[i];
+            inputs[2 * i + 1] = point.clone();
+            inputs[2 * i + 1][i] += steps[i];
+        }
 
-            System.arraycopy(point, 0, input, 0, input.length);
-            input[i] += steps[i];
-            double b = function.value(input);
+        double[] values;
+        if (function instanceof BatchMultivariateFunction) {
+            values = ((BatchMultivariateFunction) function).value(inputs);
+        } else {
+            values = new double[inputs.length];
+            for (int j = 0; j < inputs.length; j++) {
+                values[j] = function.value(inputs[j]);
+            }
+        }
 
+        double[] result = new double[point.length];
+        for (int i = 0; i < result.length; i++) {
+            double a = values[2 * i];
+            double b = values[2 * i + 1];
             result[i] = (a - b) / steps[i] / 2;
         }
         return result;
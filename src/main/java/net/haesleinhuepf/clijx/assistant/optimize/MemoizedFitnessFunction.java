@@ -0,0 +1,239 @@
+package net.haesleinhuepf.clijx.assistant.optimize;
+
+import net.haesleinhuepf.clij2.CLIJ2;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MemoizedFitnessFunction
+ * <p>
+ * Remembers fitness values by the arguments the workflow's plugins effectively receive. Numeric parameters are
+ * handed over as absolute values and passed to the kernels as float; only the parameters on a list of plugins known to
+ * read them with asInteger() are treated as truncated integers. Parameter vectors which only differ below that resolution produce the same
+ * result and are evaluated once. The least recently used values are forgotten beyond a maximum size.
+ * <p>
+ * Replicas for parallel optimization share the cache.
+ */
+public class MemoizedFitnessFunction implements ReplicableFunction, BatchMultivariateFunction {
+
+    private static int maximum_size = 1000;
+
+    // parameters the plugins read with asInteger(), named like in Workflow.getNumericParameterNames()
+    private static final HashSet<String> integer_parameters = new HashSet<>();
+    static {
+        for (String plugin : new String[]{
+                "CLIJ2_meanBox", "CLIJ2_minimumBox", "CLIJ2_maximumBox", "CLIJ2_medianBox",
+                "CLIJ2_meanSphere", "CLIJ2_minimumSphere", "CLIJ2_maximumSphere", "CLIJ2_medianSphere",
+                "CLIJ2_topHatBox", "CLIJ2_topHatSphere", "CLIJ2_bottomHatBox", "CLIJ2_bottomHatSphere",
+                "CLIJ2_detectMaximaBox", "CLIJ2_detectMinimaBox"}) {
+            integer_parameters.add(plugin + "_radiusX");
+            integer_parameters.add(plugin + "_radiusY");
+            integer_parameters.add(plugin + "_radiusZ");
+        }
+        for (String plugin : new String[]{"CLIJ2_openingBox", "CLIJ2_closingBox", "CLIJ2_openingDiamond", "CLIJ2_closingDiamond"}) {
+            integer_parameters.add(plugin + "_number_of_dilations_and_erosions");
+        }
+    }
+
+    private final MultivariateFunction function;
+    // per dimension of the parameter vector: true if all workflow parameters it is mapped to are integers
+    private final boolean[] integer_dimensions;
+    private final Cache cache;
+    private final boolean replica;
+
+    private static class Cache {
+        final LinkedHashMap<String, Double> values = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                return size() > maximum_size;
+            }
+        };
+        long hits = 0;
+        long misses = 0;
+    }
+
+    public MemoizedFitnessFunction(MultivariateFunction function, Workflow workflow, int[] parameter_index_map) {
+        this(function, integerDimensions(workflow, parameter_index_map), new Cache(), false);
+    }
+
+    private MemoizedFitnessFunction(MultivariateFunction function, boolean[] integer_dimensions, Cache cache, boolean replica) {
+        this.function = function;
+        this.integer_dimensions = integer_dimensions;
+        this.cache = cache;
+        this.replica = replica;
+    }
+
+    private static boolean[] integerDimensions(Workflow workflow, int[] parameter_index_map) {
+        String[] names = workflow.getNumericParameterNames();
+        int num_dimensions = 0;
+        for (int index : parameter_index_map) {
+            num_dimensions = Math.max(num_dimensions, index + 1);
+        }
+        boolean[] result = new boolean[num_dimensions];
+        Arrays.fill(result, true);
+        for (int j = 0; j < parameter_index_map.length; j++) {
+            if (parameter_index_map[j] >= 0 && !isIntegerParameter(names[j])) {
+                result[parameter_index_map[j]] = false;
+            }
+        }
+        return result;
+    }
+
+    // unknown parameters count as float; treating an integer as float only costs cache hits, the other way round
+    // would return wrong values
+    public static boolean isIntegerParameter(String name) {
+        synchronized (integer_parameters) {
+            return integer_parameters.contains(name);
+        }
+    }
+
+    @Override
+    public double value(double[] point) {
+        String key = key(point);
+        synchronized (cache) {
+            Double value = cache.values.get(key);
+            if (value != null) {
+                cache.hits++;
+                return value;
+            }
+            cache.misses++;
+        }
+        // concurrent replicas may compute the same point twice; that's cheaper than waiting for each other
+        double value = function.value(point);
+        synchronized (cache) {
+            cache.values.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Looks up all points first and evaluates the missing ones in one batch if the wrapped function supports it.
+     * Points with the same key within the batch are evaluated once.
+     */
+    @Override
+    public double[] value(double[][] points) {
+        double[] result = new double[points.length];
+        String[] keys = new String[points.length];
+        // key -> index of the point it's evaluated at
+        LinkedHashMap<String, Integer> missing = new LinkedHashMap<>();
+        synchronized (cache) {
+            for (int i = 0; i < points.length; i++) {
+                keys[i] = key(points[i]);
+                Double value = cache.values.get(keys[i]);
+                if (value != null) {
+                    result[i] = value;
+                    cache.hits++;
+                } else if (missing.containsKey(keys[i])) {
+                    cache.hits++;
+                } else {
+                    missing.put(keys[i], i);
+                    cache.misses++;
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        double[][] missing_points = new double[missing.size()][];
+        int count = 0;
+        for (int index : missing.values()) {
+            missing_points[count] = points[index];
+            count++;
+        }
+        double[] values;
+        if (function instanceof BatchMultivariateFunction) {
+            values = ((BatchMultivariateFunction) function).value(missing_points);
+        } else {
+            values = new double[missing_points.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = function.value(missing_points[i]);
+            }
+        }
+
+        HashMap<String, Double> computed = new HashMap<>();
+        count = 0;
+        synchronized (cache) {
+            for (String key : missing.keySet()) {
+                cache.values.put(key, values[count]);
+                computed.put(key, values[count]);
+                count++;
+            }
+        }
+        for (int i = 0; i < points.length; i++) {
+            if (computed.containsKey(keys[i])) {
+                result[i] = computed.get(keys[i]);
+            }
+        }
+        return result;
+    }
+
+    private String key(double[] point) {
+        double[] effective = new double[point.length];
+        for (int i = 0; i < point.length; i++) {
+            double value = Math.abs(point[i]);
+            if (i < integer_dimensions.length && integer_dimensions[i]) {
+                effective[i] = Math.floor(value);
+            } else {
+                effective[i] = (float) value;
+            }
+        }
+        return Arrays.toString(effective);
+    }
+
+    public String getStatistics() {
+        synchronized (cache) {
+            long total = cache.hits + cache.misses;
+            return "Fitness cache: " + cache.hits + " hits, " + cache.misses + " misses" +
+                    (total > 0 ? " (" + Math.round(100.0 * cache.hits / total) + "% saved)" : "") +
+                    ", " + cache.values.size() + " values kept";
+        }
+    }
+
+    @Override
+    public CLIJ2 getCLIJ2() {
+        return function instanceof ReplicableFunction ? ((ReplicableFunction) function).getCLIJ2() : null;
+    }
+
+    @Override
+    public ReplicableFunction replicate(CLIJ2 clij2) {
+        if (!(function instanceof ReplicableFunction)) {
+            throw new UnsupportedOperationException(function.getClass().getSimpleName() + " cannot be replicated.");
+        }
+        return new MemoizedFitnessFunction(((ReplicableFunction) function).replicate(clij2), integer_dimensions, cache, true);
+    }
+
+    /**
+     * Closes the wrapped function if it is a replica; the original stays with its owner.
+     */
+    @Override
+    public void close() {
+        if (replica) {
+            ((ReplicableFunction) function).close();
+        }
+    }
+
+    /**
+     * Declares a parameter to be read with asInteger() by its plugin, so that values truncating to the same integer
+     * share their fitness.
+     *
+     * @param name plugin and parameter name, e.g. CLIJ2_topHatBox_radiusX
+     */
+    public static void addIntegerParameter(String name) {
+        synchronized (integer_parameters) {
+            integer_parameters.add(name);
+        }
+    }
+
+    /**
+     * @param size number of fitness values kept per optimization
+     */
+    public static void setMaximumSize(int size) {
+        maximum_size = size;
+    }
+}
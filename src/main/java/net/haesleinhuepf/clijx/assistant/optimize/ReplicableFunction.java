@@ -0,0 +1,25 @@
+package net.haesleinhuepf.clijx.assistant.optimize;
+
+import net.haesleinhuepf.clij2.CLIJ2;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+
+/**
+ * ReplicableFunction
+ * <p>
+ * A fitness function which can be copied to another CLIJ2 instance, e.g. on a second GPU, so that parameter sets
+ * can be evaluated concurrently. See FitnessWorkers.
+ */
+public interface ReplicableFunction extends MultivariateFunction {
+
+    CLIJ2 getCLIJ2();
+
+    /**
+     * Returns an independent copy working on images on the given CLIJ2 instance. Call close() on it when done.
+     */
+    ReplicableFunction replicate(CLIJ2 clij2);
+
+    /**
+     * Releases the images this function allocated.
+     */
+    void close();
+}
@@ -10,12 +10,16 @@ import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
 import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.NelderMeadSimplex;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 
 import static net.haesleinhuepf.clijx.assistant.optimize.OptimizationUtilities.range;
 
 public class SimplexOptimizer implements Optimizer {
     int iterations = 6;
+    boolean parallel = false;
     public SimplexOptimizer() {
 
     }
@@ -23,36 +27,112 @@ public class SimplexOptimizer implements Optimizer {
         this.iterations = iterations;
     }
 
+    /**
+     * @param parallel if true, the vertices of the simplex are evaluated concurrently by replicas of the fitness
+     *                 function on all GPUs, see FitnessWorkers
+     */
+    public SimplexOptimizer(int iterations, boolean parallel) {
+        this.iterations = iterations;
+        this.parallel = parallel;
+    }
+
     @Override
     public double[] optimize(double[] current, Workflow workflow, int[] parameter_index_map, MultivariateFunction fitness, Logger logger) {
 
         logger.log("Start:        " + Arrays.toString(current) + "\t");
 
         org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer optimizer = new org.apache.commons.math3.optim.nonlinear.scalar.noderiv.SimplexOptimizer(-1, 1e-5);
-        for (int i = 0; i < iterations; i++) {
-            NelderMeadSimplex simplex = makeSimplexOptimizer(current.length, workflow.getNumericParameterNames(), parameter_index_map, Math.pow(2, iterations / 2 - i - 1));
-            //double[] lowerBounds = new double[simplex.getDimension()];
-            //double[] upperBounds = new double[simplex.getDimension()];
-            //for (int b = 0; b < upperBounds.length; b++) {
-            //    upperBounds[b] = Double.MAX_VALUE;
-            //}
-            //, new SimpleBounds(lowerBounds, upperBounds)
-            PointValuePair solution = optimizer.optimize(new MaxEval(1000), new InitialGuess(current), simplex, new ObjectiveFunction(fitness), GoalType.MINIMIZE);
-
-            current = solution.getKey();
-            logger.log("Intermediate: " + Arrays.toString(current) + "\t f = " + solution.getValue());
+        FitnessWorkers workers = parallel ? FitnessWorkers.create(fitness, logger) : null;
+        try {
+            for (int i = 0; i < iterations; i++) {
+                double[] steps = range(current.length, workflow.getNumericParameterNames(), parameter_index_map, Math.pow(2, iterations / 2 - i - 1));
+                System.out.println("Step lengths: " + Arrays.toString(steps));
+
+                NelderMeadSimplex simplex;
+                MultivariateFunction objective = fitness;
+                if (workers != null && workers.size() > 1) {
+                    ParallelNelderMeadSimplex parallel_simplex = new ParallelNelderMeadSimplex(steps, workers.asBatchFunction(), fitness);
+                    simplex = parallel_simplex;
+                    objective = parallel_simplex.getObjective();
+                } else {
+                    simplex = new NelderMeadSimplex(steps);
+                }
+                //double[] lowerBounds = new double[simplex.getDimension()];
+                //double[] upperBounds = new double[simplex.getDimension()];
+                //for (int b = 0; b < upperBounds.length; b++) {
+                //    upperBounds[b] = Double.MAX_VALUE;
+                //}
+                //, new SimpleBounds(lowerBounds, upperBounds)
+                PointValuePair solution = optimizer.optimize(new MaxEval(1000), new InitialGuess(current), simplex, new ObjectiveFunction(objective), GoalType.MINIMIZE);
+
+                current = solution.getKey();
+                logger.log("Intermediate: " + Arrays.toString(current) + "\t f = " + solution.getValue());
+            }
+        } finally {
+            if (workers != null) {
+                workers.close();
+            }
         }
         logger.log("Final:        " + Arrays.toString(current) + "\t");
         return current;
     }
 
-    private static NelderMeadSimplex makeSimplexOptimizer(int numDimensions, String[] numericParameterNames, int[] parameter_index_map, double factor) {
-        double[] steps = range(numDimensions, numericParameterNames, parameter_index_map, factor);
+    /**
+     * Evaluates all vertices which need it in one batch, i.e. the initial simplex and the vertices after a shrink
+     * step, e.g. distributed to the FitnessWorkers. Reflection, expansion and contraction are sequential by nature
+     * and stay on the original fitness function.
+     * <p>
+     * Batched values are handed to the optimizer through its evaluation function nevertheless, so that they count
+     * against MaxEval and getEvaluations() like sequential ones; the objective returned by getObjective() replays them
+     * instead of computing them again.
+     */
+    private static class ParallelNelderMeadSimplex extends NelderMeadSimplex {
+        private final BatchMultivariateFunction function;
+        private final MultivariateFunction fitness;
+        // points of the current batch -> their values, until the optimizer asked for them
+        private final IdentityHashMap<double[], Double> batch_values = new IdentityHashMap<>();
 
-        System.out.println("Step lengths: " + Arrays.toString(steps) );
+        ParallelNelderMeadSimplex(double[] steps, BatchMultivariateFunction function, MultivariateFunction fitness) {
+            super(steps);
+            this.function = function;
+            this.fitness = fitness;
+        }
+
+        MultivariateFunction getObjective() {
+            return (point) -> {
+                Double value = batch_values.remove(point);
+                return value != null ? value : fitness.value(point);
+            };
+        }
 
-        NelderMeadSimplex simplex = new NelderMeadSimplex(steps);
-        return simplex;
+        @Override
+        public void evaluate(MultivariateFunction evaluationFunction, Comparator<PointValuePair> comparator) {
+            PointValuePair[] points = getPoints();
+            ArrayList<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < points.length; i++) {
+                if (Double.isNaN(points[i].getValue())) {
+                    pending.add(i);
+                }
+            }
+            double[][] coordinates = new double[pending.size()][];
+            for (int p = 0; p < coordinates.length; p++) {
+                coordinates[p] = points[pending.get(p)].getPointRef();
+            }
+            double[] values = function.value(coordinates);
+            try {
+                for (int p = 0; p < coordinates.length; p++) {
+                    batch_values.put(coordinates[p], values[p]);
+                }
+                for (int p = 0; p < coordinates.length; p++) {
+                    // counts the evaluation; throws TooManyEvaluationsException when MaxEval is reached
+                    points[pending.get(p)] = new PointValuePair(coordinates[p], evaluationFunction.value(coordinates[p]), false);
+                }
+            } finally {
+                batch_values.clear();
+            }
+            Arrays.sort(points, comparator);
+            setPoints(points);
+        }
     }
 
 }
@@ -3,6 +3,7 @@ package net.haesleinhuepf.clijx.assistant.optimize;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
 import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.plugins.Copy;
 import net.haesleinhuepf.clij2.plugins.GaussianBlur2D;
@@ -10,6 +11,7 @@ import net.haesleinhuepf.clij2.plugins.GreaterConstant;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 public class Workflow {
 
@@ -17,6 +19,9 @@ public class Workflow {
     ArrayList<Object[]> parameters;
     Object[][] args;
 
+    // buffers created by replicate(); released in close()
+    private ArrayList<ClearCLBuffer> owned_buffers = new ArrayList<>();
+
     public Workflow(CLIJMacroPlugin[] clijPlugins, Object[][] args) {
         plugins = new ArrayList<CLIJMacroPlugin>();
         parameters = new ArrayList<Object[]>();
@@ -60,7 +65,12 @@ public class Workflow {
     public void setNumericParameter(int plugin_index, int parameter_index, Double parameter_value) {
         //System.out.println("Set " + plugin_index + "/" + parameter_index + " = " + parameter_value);
 
-        parameters.get(plugin_index)[parameter_index] = Math.abs(parameter_value);
+        Double value = Math.abs(parameter_value);
+        Object former = parameters.get(plugin_index)[parameter_index];
+        if (!(former instanceof Number) || ((Number) former).doubleValue() != value) {
+            first_dirty_step = Math.min(first_dirty_step, plugin_index);
+        }
+        parameters.get(plugin_index)[parameter_index] = value;
     }
 
     public Double getNumericParameter(int plugin_index, int parameter_index) {
@@ -68,14 +78,81 @@ public class Workflow {
     }
 
 
+    // ranges of steps executed as one kernel, see ElementwiseFusion
+    private ArrayList<int[]> fusion_plan = null;
+
+    // steps before this one hold valid results for the current parameters
+    private int first_dirty_step = 1;
+
+    /**
+     * Executes all steps.
+     */
     public void compute() {
-        int count = 0;
-        for (CLIJMacroPlugin plugin : plugins) {
-            if (plugin instanceof CLIJOpenCLProcessor && (count > 0)) { // special cases: don't execute initial step (Starting point)
+        computeFrom(1); // special cases: don't execute initial step (Starting point)
+    }
+
+    /**
+     * Executes the steps starting at the first one whose parameters changed since the last computation; the results
+     * of the steps before are still in their output images. This requires that nobody else wrote into the workflow's
+     * images meanwhile and that the input didn't change; otherwise, call compute(). The assistant's optimizer
+     * suspends refreshes and previews of the graph while it runs for that reason.
+     */
+    public void update() {
+        int start = Math.max(1, first_dirty_step);
+        if (fusion_plan != null) {
+            // fused steps don't write their intermediate results; restart at the beginning of the range
+            for (int[] range : fusion_plan) {
+                if (range[0] < start && start <= range[1]) {
+                    start = range[0];
+                }
+            }
+        }
+        computeFrom(start);
+    }
+
+    private void computeFrom(int first_step) {
+        if (fusion_plan == null) {
+            fusion_plan = ElementwiseFusion.plan(plugins, parameters);
+        }
+        // if execution fails, everything from here on is unknown
+        first_dirty_step = first_step;
+        for (int count = first_step; count < plugins.size(); count++) {
+            int[] range = fusedRangeStartingAt(count);
+            if (range != null) {
+                try {
+                    ElementwiseFusion.execute(((AbstractCLIJ2Plugin) plugins.get(count)).getCLIJ2(), plugins, parameters, range[0], range[1]);
+                    count = range[1];
+                    continue;
+                } catch (Exception e) {
+                    System.out.println("Fused execution failed, executing steps one by one: " + e);
+                    fusion_plan.remove(range);
+                }
+            }
+            CLIJMacroPlugin plugin = plugins.get(count);
+            if (plugin instanceof CLIJOpenCLProcessor) {
                 ((CLIJOpenCLProcessor) plugin).executeCL();
             }
-            count ++;
         }
+        first_dirty_step = plugins.size();
+    }
+
+    private int[] fusedRangeStartingAt(int step) {
+        if (!ElementwiseFusion.isEnabled()) {
+            return null;
+        }
+        for (int[] range : fusion_plan) {
+            if (range[0] == step && plugins.get(step) instanceof AbstractCLIJ2Plugin) {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the image the workflow processes, i.e. the output of the starting point.
+     */
+    public ClearCLBuffer getInput() {
+        return (ClearCLBuffer) parameters.get(0)[1];
     }
 
     public ClearCLBuffer getOutput() {
@@ -149,6 +226,104 @@ public class Workflow {
         return result;
     }
 
+    /**
+     * Creates an independent copy of this workflow processing the given input on the given CLIJ2 instance. Plugins
+     * are instantiated anew, numeric parameters are copied and intermediate and output images are allocated
+     * according to the input. The GUI and its images are not touched. Call close() on the copy when done.
+     */
+    public Workflow replicate(CLIJ2 clij2, ClearCLBuffer input) {
+        IdentityHashMap<ClearCLBuffer, ClearCLBuffer> buffer_map = new IdentityHashMap<>();
+        CLIJMacroPlugin[] replica_plugins = new CLIJMacroPlugin[plugins.size()];
+        Object[][] replica_args = new Object[plugins.size()][];
+        ArrayList<ClearCLBuffer> created = new ArrayList<>();
+
+        for (int i = 0; i < plugins.size(); i++) {
+            CLIJMacroPlugin plugin;
+            try {
+                plugin = plugins.get(i).getClass().newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException("Cannot instantiate " + plugins.get(i).getClass().getName(), e);
+            }
+            plugin.setClij(clij2.getCLIJ());
+            if (plugin instanceof AbstractCLIJ2Plugin) {
+                ((AbstractCLIJ2Plugin) plugin).setCLIJ2(clij2);
+            }
+
+            Object[] original = parameters.get(i);
+            Object[] replica = new Object[original.length];
+            boolean[] is_output = getOutputParameters(plugin, original.length);
+
+            if (i == 0) {
+                // starting point: it's not executed, its output is the input of the workflow
+                for (int j = 0; j < original.length; j++) {
+                    if (original[j] instanceof ClearCLBuffer) {
+                        buffer_map.put((ClearCLBuffer) original[j], input);
+                        replica[j] = input;
+                    } else {
+                        replica[j] = original[j];
+                    }
+                }
+            } else {
+                ClearCLBuffer first_input = null;
+                for (int j = 0; j < original.length; j++) {
+                    if (original[j] instanceof ClearCLBuffer && !is_output[j]) {
+                        ClearCLBuffer mapped = buffer_map.get(original[j]);
+                        if (mapped == null) {
+                            throw new IllegalArgumentException("Step " + i + " (" + plugin.getName() + ") reads an image which is not produced within the workflow.");
+                        }
+                        replica[j] = mapped;
+                        if (first_input == null) {
+                            first_input = mapped;
+                        }
+                    } else if (!(original[j] instanceof ClearCLBuffer)) {
+                        replica[j] = original[j];
+                    }
+                }
+                plugin.setArgs(replica);
+                for (int j = 0; j < original.length; j++) {
+                    if (original[j] instanceof ClearCLBuffer && is_output[j]) {
+                        ClearCLBuffer output = plugin.createOutputBufferFromSource(first_input != null ? first_input : input);
+                        created.add(output);
+                        buffer_map.put((ClearCLBuffer) original[j], output);
+                        replica[j] = output;
+                    }
+                }
+            }
+            plugin.setArgs(replica);
+
+            replica_plugins[i] = plugin;
+            replica_args[i] = replica;
+        }
+
+        Workflow workflow = new Workflow(replica_plugins, replica_args);
+        workflow.owned_buffers = created;
+        return workflow;
+    }
+
+    private static boolean[] getOutputParameters(CLIJMacroPlugin plugin, int number_of_parameters) {
+        boolean[] result = new boolean[number_of_parameters];
+        String[] parameterHelpTexts = plugin.getParameterHelpText().split(",");
+        for (int i = 0; i < parameterHelpTexts.length && i < number_of_parameters; i++) {
+            String[] parts = parameterHelpTexts[i].trim().split(" ");
+            if (parts.length > 1) {
+                boolean byRef = parts[0].compareTo("ByRef") == 0;
+                String name = parts[parts.length - 1];
+                result[i] = byRef || name.contains("destination");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Releases the images allocated by replicate().
+     */
+    public void close() {
+        for (ClearCLBuffer buffer : owned_buffers) {
+            buffer.close();
+        }
+        owned_buffers.clear();
+    }
+
     public ArrayList<CLIJMacroPlugin> getPlugins() {
         return plugins;
     }
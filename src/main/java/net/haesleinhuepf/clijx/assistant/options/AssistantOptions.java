@@ -2,6 +2,7 @@ package net.haesleinhuepf.clijx.assistant.options;
 
 import ij.IJ;
 import ij.Prefs;
+import net.haesleinhuepf.spimcat.io.DeviceMemoryBudget;
 
 public class AssistantOptions {
     private static String GIT_EXECUTABLE = "git";
@@ -12,6 +13,12 @@ public class AssistantOptions {
     private static String CONDA_PATH = "";
     private static String CONDA_ENV = "te_oki";
 
+    private static int REFRESH_THREADS = 2;
+    private static int REFRESH_DEBOUNCE = 150;
+    private static double DEVICE_MEMORY_FRACTION = DeviceMemoryBudget.getDeviceMemoryFraction();
+    private static int PREVIEW_DOWNSAMPLING = 1;
+    private static boolean SLAB_PREVIEW = false;
+
     private static AssistantOptions instance = null;
     public static synchronized AssistantOptions getInstance() {
         if (instance == null) {
@@ -33,6 +40,13 @@ public class AssistantOptions {
         CONDA_ENV = Prefs.get("CLIJx-assistant.conda_env", CONDA_ENV);
 
         ICY_EXECUTABLE = Prefs.get("CLIJx-assistant.icy", ICY_EXECUTABLE);
+
+        REFRESH_THREADS = Prefs.getInt("CLIJx-assistant.refresh_threads", REFRESH_THREADS);
+        REFRESH_DEBOUNCE = Prefs.getInt("CLIJx-assistant.refresh_debounce", REFRESH_DEBOUNCE);
+        DEVICE_MEMORY_FRACTION = Prefs.get("CLIJx-assistant.device_memory_fraction", DEVICE_MEMORY_FRACTION);
+        PREVIEW_DOWNSAMPLING = Prefs.getInt("CLIJx-assistant.preview_downsampling", PREVIEW_DOWNSAMPLING);
+        SLAB_PREVIEW = Prefs.getBoolean("CLIJx-assistant.slab_preview", SLAB_PREVIEW);
+        DeviceMemoryBudget.setDeviceMemoryFraction(DEVICE_MEMORY_FRACTION);
     }
 
     public String getCondaPath() {
@@ -50,6 +64,11 @@ public class AssistantOptions {
         Prefs.set("CLIJx-assistant.conda_path", CONDA_PATH);
         Prefs.set("CLIJx-assistant.conda_env", CONDA_ENV);
         Prefs.set("CLIJx-assistant.icy", ICY_EXECUTABLE);
+        Prefs.set("CLIJx-assistant.refresh_threads", REFRESH_THREADS);
+        Prefs.set("CLIJx-assistant.refresh_debounce", REFRESH_DEBOUNCE);
+        Prefs.set("CLIJx-assistant.device_memory_fraction", DEVICE_MEMORY_FRACTION);
+        Prefs.set("CLIJx-assistant.preview_downsampling", PREVIEW_DOWNSAMPLING);
+        Prefs.set("CLIJx-assistant.slab_preview", SLAB_PREVIEW);
     }
 
     public String getGitExecutable() {
@@ -96,4 +115,64 @@ public class AssistantOptions {
         AssistantOptions.ICY_EXECUTABLE = icy_executable;
         savePrefs();
     }
+
+    public int getRefreshThreads() {
+        return REFRESH_THREADS;
+    }
+
+    void setRefreshThreads(int refresh_threads) {
+        AssistantOptions.REFRESH_THREADS = Math.max(1, refresh_threads);
+        savePrefs();
+    }
+
+    /**
+     * @return time in milliseconds invalidations are collected before a refresh starts
+     */
+    public int getRefreshDebounce() {
+        return REFRESH_DEBOUNCE;
+    }
+
+    void setRefreshDebounce(int refresh_debounce) {
+        AssistantOptions.REFRESH_DEBOUNCE = Math.max(0, refresh_debounce);
+        savePrefs();
+    }
+
+    /**
+     * @return fraction of the GPU memory node results may occupy before the least recently viewed ones are evicted
+     */
+    public double getDeviceMemoryFraction() {
+        return DEVICE_MEMORY_FRACTION;
+    }
+
+    void setDeviceMemoryFraction(double device_memory_fraction) {
+        AssistantOptions.DEVICE_MEMORY_FRACTION = Math.max(0.05, Math.min(1.0, device_memory_fraction));
+        DeviceMemoryBudget.setDeviceMemoryFraction(DEVICE_MEMORY_FRACTION);
+        savePrefs();
+    }
+
+    /**
+     * @return factor by which images are downsampled in X and Y for previews while parameters are edited; 1 means
+     * no preview
+     */
+    public int getPreviewDownsampling() {
+        return PREVIEW_DOWNSAMPLING;
+    }
+
+    void setPreviewDownsampling(int preview_downsampling) {
+        AssistantOptions.PREVIEW_DOWNSAMPLING = Math.max(1, preview_downsampling);
+        savePrefs();
+    }
+
+    /**
+     * @return true if previews are restricted to the planes around the displayed one and the full volume is computed
+     * only after the dialog is left or another plane is looked at
+     */
+    public boolean isSlabPreview() {
+        return SLAB_PREVIEW;
+    }
+
+    void setSlabPreview(boolean slab_preview) {
+        AssistantOptions.SLAB_PREVIEW = slab_preview;
+        savePrefs();
+    }
 }
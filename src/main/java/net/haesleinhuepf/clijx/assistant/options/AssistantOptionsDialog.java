@@ -18,6 +18,12 @@ public class AssistantOptionsDialog implements PlugIn {
         gdp.addFileField("git executable", ao.getGitExecutable());
         gdp.addFileField("maven executable", ao.getMavenExecutable());
         gdp.addDirectoryField("JDK home", ao.getJdkHome());
+        gdp.addNumericField("Parallel refresh threads", ao.getRefreshThreads(), 0);
+        gdp.addNumericField("Refresh delay after edits (ms)", ao.getRefreshDebounce(), 0);
+        gdp.addNumericField("GPU memory for results (%)", ao.getDeviceMemoryFraction() * 100, 0);
+        String[] preview_choices = {"off", "2x downsampled", "4x downsampled"};
+        gdp.addChoice("Preview while editing", preview_choices, preview_choices[Math.min(2, ao.getPreviewDownsampling() / 2)]);
+        gdp.addCheckbox("Preview displayed planes only, full volume after editing", ao.isSlabPreview());
 
         gdp.showDialog();
 
@@ -32,5 +38,10 @@ public class AssistantOptionsDialog implements PlugIn {
         ao.setGitExecutable(gdp.getNextString());
         ao.setMavenExecutable(gdp.getNextString());
         ao.setJdkHome(gdp.getNextString());
+        ao.setRefreshThreads((int) gdp.getNextNumber());
+        ao.setRefreshDebounce((int) gdp.getNextNumber());
+        ao.setDeviceMemoryFraction(gdp.getNextNumber() / 100);
+        ao.setPreviewDownsampling(new int[]{1, 2, 4}[gdp.getNextChoiceIndex()]);
+        ao.setSlabPreview(gdp.getNextBoolean());
     }
 }
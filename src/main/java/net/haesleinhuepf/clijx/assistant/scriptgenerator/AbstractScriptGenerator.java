@@ -54,10 +54,8 @@ public abstract class AbstractScriptGenerator implements ScriptGenerator {
             for (ImagePlus image : image_map.keySet()) {
                 if (image.getStack() instanceof CLIJxVirtualStack) {
                     CLIJxVirtualStack cvs = (CLIJxVirtualStack) image.getStack();
-                    for (int c = 0; c < cvs.getNumberOfChannels(); c++) {
-                        if (arg == cvs.getBuffer(c)) {
-                            return objectToString(image);
-                        }
+                    if (cvs.isBackedBy((ClearCLBuffer) arg)) {
+                        return objectToString(image);
                     }
                 }
             }
@@ -3,6 +3,9 @@ package net.haesleinhuepf.clijx.assistant.utilities;
 import net.haesleinhuepf.clijx.assistant.AbstractAssistantGUIPlugin;
 import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
 
+import java.util.Arrays;
+import java.util.Objects;
+
 public class ParameterContainer {
     Object[][] parameters;
     public ParameterContainer(Object[][] parameters) {
@@ -32,15 +35,23 @@ public class ParameterContainer {
                     return false;
                 }
                 for (int j = 0; j < this.parameters[i].length; j++) {
-                    if (this.parameters[i][j] != parameters[i][j]) {
+                    // numbers by value; images by identity
+                    if (!Objects.equals(this.parameters[i][j], parameters[i][j])) {
                         return false;
                     }
                 }
+            } else if (this.parameters[i] != parameters[i]) {
+                return false;
             }
         }
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(parameters);
+    }
+
     public void copyTo(Object[][] parameters) {
         for (int i = 0; i < this.parameters.length; i++) {
             if (this.parameters[i] != null && parameters[i] != null) {
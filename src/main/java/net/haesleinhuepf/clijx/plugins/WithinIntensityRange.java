@@ -10,6 +10,8 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import net.haesleinhuepf.clij2.utilities.IsCategorized;
 import org.scijava.plugin.Plugin;
 
+import java.util.HashMap;
+
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJx_withinIntensityRange")
 public class WithinIntensityRange extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, IsCategorized {
 
@@ -29,18 +31,16 @@ public class WithinIntensityRange extends AbstractCLIJ2Plugin implements CLIJMac
     }
 
     public static boolean withinIntensityRange(CLIJ2 clijx, ClearCLBuffer pushed, ClearCLBuffer result, Float above_intensity, Float below_intensity) {
-        ClearCLBuffer above = clijx.create(pushed.getDimensions(), NativeTypeEnum.UnsignedByte);
-        ClearCLBuffer below = clijx.create(pushed.getDimensions(), NativeTypeEnum.UnsignedByte);
-
-        clijx.greaterConstant(pushed, above, above_intensity);
-        clijx.smallerConstant(pushed, below, below_intensity);
-
-        clijx.binaryAnd(below, above, result);
-
-        above.close();
-        below.close();
-
-        return true;
+        // one pass instead of greaterConstant, smallerConstant and binaryAnd through two temporary images
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("image1", pushed);
+        parameters.put("image2", result);
+        parameters.put("above_intensity", above_intensity);
+        parameters.put("below_intensity", below_intensity);
+        return clijx.customOperation(
+                "float v = READ_IMAGE(image1, sampler, POS_image1_INSTANCE(x, y, z, 0)).x;\n" +
+                "WRITE_IMAGE(image2, POS_image2_INSTANCE(x, y, z, 0), CONVERT_image2_PIXEL_TYPE(v > above_intensity && v < below_intensity ? 1 : 0));\n",
+                "", parameters);
     }
 
     @Override
@@ -0,0 +1,141 @@
+package net.haesleinhuepf.spimcat.io;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * BufferPool
+ * <p>
+ * Reuses GPU buffers of identical size and type instead of allocating and releasing them in every refresh or
+ * optimizer iteration. Buffers are leased and returned; returned buffers stay allocated until the pool exceeds
+ * a configurable fraction of the device memory. Then the least recently returned ones are released.
+ */
+public class BufferPool {
+
+    private static double maximum_memory_fraction = 0.25;
+
+    private static final IdentityHashMap<CLIJ2, BufferPool> instances = new IdentityHashMap<>();
+
+    public static synchronized BufferPool getInstance(CLIJ2 clij2) {
+        BufferPool pool = instances.get(clij2);
+        if (pool == null) {
+            pool = new BufferPool(clij2);
+            instances.put(clij2, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Releases the idle buffers of the given context and forgets its pool, e.g. before the context is closed.
+     */
+    public static void remove(CLIJ2 clij2) {
+        BufferPool pool;
+        synchronized (BufferPool.class) {
+            pool = instances.remove(clij2);
+        }
+        if (pool != null) {
+            pool.clear();
+        }
+    }
+
+    private final CLIJ2 clij2;
+
+    // size class -> idle buffers
+    private final HashMap<String, ArrayDeque<ClearCLBuffer>> idle = new HashMap<>();
+    // idle buffers in the order they were returned, for eviction
+    private final LinkedHashMap<ClearCLBuffer, String> returned = new LinkedHashMap<>();
+    private long idle_bytes = 0;
+
+    private BufferPool(CLIJ2 clij2) {
+        this.clij2 = clij2;
+    }
+
+    public ClearCLBuffer lease(ClearCLBuffer template) {
+        return lease(template.getDimensions(), template.getNativeType());
+    }
+
+    public synchronized ClearCLBuffer lease(long[] dimensions, NativeTypeEnum type) {
+        ArrayDeque<ClearCLBuffer> candidates = idle.get(sizeClass(dimensions, type));
+        while (candidates != null && !candidates.isEmpty()) {
+            ClearCLBuffer buffer = candidates.pop();
+            returned.remove(buffer);
+            idle_bytes -= buffer.getSizeInBytes();
+            if (buffer.getPeerPointer() != null) { // it might have been closed by someone else, e.g. clijx.clear()
+                return buffer;
+            }
+        }
+        return clij2.create(dimensions, type);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     */
+    public synchronized void release(ClearCLBuffer buffer) {
+        if (buffer == null || buffer.getPeerPointer() == null || returned.containsKey(buffer)) {
+            return;
+        }
+        String key = sizeClass(buffer.getDimensions(), buffer.getNativeType());
+        ArrayDeque<ClearCLBuffer> candidates = idle.get(key);
+        if (candidates == null) {
+            candidates = new ArrayDeque<>();
+            idle.put(key, candidates);
+        }
+        candidates.push(buffer);
+        returned.put(buffer, key);
+        idle_bytes += buffer.getSizeInBytes();
+
+        evict();
+    }
+
+    private void evict() {
+        long maximum_bytes = (long) (clij2.getCLIJ().getGPUMemoryInBytes() * maximum_memory_fraction);
+        Iterator<ClearCLBuffer> iterator = returned.keySet().iterator();
+        while (idle_bytes > maximum_bytes && iterator.hasNext()) {
+            ClearCLBuffer buffer = iterator.next();
+            String key = returned.get(buffer);
+            iterator.remove();
+            idle.get(key).remove(buffer);
+            idle_bytes -= buffer.getSizeInBytes();
+            buffer.close();
+        }
+    }
+
+    /**
+     * Releases all idle buffers on the device.
+     */
+    public synchronized void clear() {
+        for (ClearCLBuffer buffer : returned.keySet()) {
+            buffer.close();
+        }
+        returned.clear();
+        idle.clear();
+        idle_bytes = 0;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idle_bytes;
+    }
+
+    private static String sizeClass(long[] dimensions, NativeTypeEnum type) {
+        return Arrays.toString(dimensions) + " " + type;
+    }
+
+    public static double getMaximumMemoryFraction() {
+        return maximum_memory_fraction;
+    }
+
+    /**
+     * @param fraction fraction of the device memory idle buffers may occupy before they are released
+     */
+    public static void setMaximumMemoryFraction(double fraction) {
+        maximum_memory_fraction = fraction;
+    }
+}
@@ -5,8 +5,17 @@ import ij.plugin.Duplicator;
 import ij.plugin.HyperStackConverter;
 import ij.process.ImageProcessor;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clijx.CLIJx;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class CLIJxVirtualStack extends VirtualStack {
     private ClearCLBuffer[] buffer;
 
@@ -20,6 +29,7 @@ public class CLIJxVirtualStack extends VirtualStack {
         setBitDepth((int) (buffer[0].getPixelSizeInBytes() * 8));
 
         this.buffer = buffer;
+        DeviceMemoryBudget.getInstance().register(buffer);
 
         if (!catcher_initialized) {
             ImagePlus.addImageListener(new ImageListener() {
@@ -34,9 +44,11 @@ public class CLIJxVirtualStack extends VirtualStack {
                         return;
                     }
                     if (imp.getStack() instanceof CLIJxVirtualStack) {
-                        ImageStack stack = imp.getStack();
+                        // no getBuffer() here; it would bring evicted images back to the GPU
+                        ClearCLBuffer[] buffers = ((CLIJxVirtualStack) imp.getStack()).buffer;
+                        DeviceMemoryBudget.getInstance().unregister(buffers);
                         if (imp.getNChannels() == 1) {
-                            ClearCLBuffer buffer = ((CLIJxVirtualStack) stack).getBuffer(0);
+                            ClearCLBuffer buffer = buffers[0];
                             //imp.setStack(CLIJx.getInstance().pull(buffer).getStack());
                             buffer.close();
                         } else {
@@ -45,7 +57,7 @@ public class CLIJxVirtualStack extends VirtualStack {
                             //imp.setStack(imp2.getStack());
 
                             for (int c = 0; c < imp.getNChannels(); c++) {
-                                ClearCLBuffer buffer = ((CLIJxVirtualStack) stack).getBuffer(c);
+                                ClearCLBuffer buffer = buffers[c];
                                 buffer.close();
                             }
                         }
@@ -61,47 +73,223 @@ public class CLIJxVirtualStack extends VirtualStack {
         }
     }
 
-    ImageProcessor[] formerSliceProcessors = null;
+    // pulled z-planes (all channels), least recently used first
+    private final LinkedHashMap<Integer, ImageProcessor[]> planes = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashSet<Integer> prefetching = new HashSet<>();
+    private int cache_generation = 0;
+    private long cached_bytes = 0;
+    private final AtomicLong pulled_bytes = new AtomicLong();
     int former_z = -1;
 
+    private static long plane_cache_bytes = 64 * 1024 * 1024;
+    private static int prefetch_planes = 2;
+
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "CLIJxVirtualStack prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Returns the processor of the given plane. The pixel array is shared with the plane cache and must be treated
+     * as read-only.
+     */
     @Override
-    public synchronized ImageProcessor getProcessor(int n) {
+    public ImageProcessor getProcessor(int n) {
         int index = n - 1;
         int zplane = index / buffer.length;
         int channel = index % buffer.length;
 
-        if (zplane != former_z || formerSliceProcessors == null) {
+        ImageProcessor[] plane = getPlane(zplane);
 
-            formerSliceProcessors = new ImageProcessor[buffer.length];
+        int direction = former_z < 0 || zplane >= former_z ? 1 : -1;
+        former_z = zplane;
+        for (int i = 1; i <= prefetch_planes; i++) {
+            prefetch(zplane + i * direction);
+        }
 
-            CLIJx clijx = CLIJx.getInstance();
-            ClearCLBuffer slice = clijx.create(new long[]{buffer[0].getWidth(), buffer[0].getHeight()}, buffer[0].getNativeType());
+        return plane[channel];
+    }
 
-            System.out.println("Buffer " + buffer);
-            System.out.println("Buffer[0] " + buffer[0]);
-            System.out.println("Buffer[0] pointer " + buffer[0].getPeerPointer());
-            System.out.println("Buffer slice " + slice.getPeerPointer());
+    private ImageProcessor[] getPlane(int zplane) {
+        int generation;
+        synchronized (planes) {
+            ImageProcessor[] cached = planes.get(zplane);
+            if (cached != null) {
+                return cached;
+            }
+            generation = cache_generation;
+        }
+        ImageProcessor[] pulled;
+        DeviceMemoryBudget budget = DeviceMemoryBudget.getInstance();
+        budget.pin(buffer);
+        try {
+            if (!budget.makeResident(buffer, true)) {
+                // being recomputed; show what's there without caching it
+                return pullPlane(zplane);
+            }
+            pulled = pullPlane(zplane);
+        } finally {
+            budget.unpin(buffer);
+        }
+        store(zplane, pulled, generation);
+        return pulled;
+    }
 
+    private void prefetch(int zplane) {
+        if (zplane < 0 || zplane >= buffer[0].getDepth()) {
+            return;
+        }
+        final int generation;
+        synchronized (planes) {
+            if (planes.containsKey(zplane) || prefetching.contains(zplane)) {
+                return;
+            }
+            prefetching.add(zplane);
+            generation = cache_generation;
+        }
+        prefetcher.submit(() -> {
+            try {
+                synchronized (planes) {
+                    if (generation != cache_generation || planes.containsKey(zplane)) {
+                        return;
+                    }
+                }
+                DeviceMemoryBudget budget = DeviceMemoryBudget.getInstance();
+                budget.pin(buffer);
+                try {
+                    if (budget.makeResident(buffer, true)) {
+                        store(zplane, pullPlane(zplane), generation);
+                    }
+                } finally {
+                    budget.unpin(buffer);
+                }
+            } catch (Exception e) {
+                System.out.println("Prefetching plane " + zplane + " failed: " + e);
+            } finally {
+                synchronized (planes) {
+                    prefetching.remove(zplane);
+                }
+            }
+        });
+    }
+
+    private void store(int zplane, ImageProcessor[] plane, int generation) {
+        synchronized (planes) {
+            if (generation != cache_generation || planes.containsKey(zplane)) {
+                return;
+            }
+            planes.put(zplane, plane);
+            cached_bytes += getPlaneSizeInBytes();
+
+            Iterator<Integer> iterator = planes.keySet().iterator();
+            while (cached_bytes > plane_cache_bytes && planes.size() > 1 && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                cached_bytes -= getPlaneSizeInBytes();
+            }
+        }
+    }
+
+    private ImageProcessor[] pullPlane(int zplane) {
+        ImageProcessor[] processors = new ImageProcessor[buffer.length];
+
+        CLIJx clijx = CLIJx.getInstance();
+        BufferPool pool = BufferPool.getInstance(clijx);
+        synchronized (clijx) {
+            ClearCLBuffer slice = pool.lease(new long[]{buffer[0].getWidth(), buffer[0].getHeight()}, buffer[0].getNativeType());
             for (int c = 0; c < buffer.length; c++) {
-                System.out.println("Channel " + c);
                 if (buffer[c].getPeerPointer() != null) { // Workaround: This can happen if visualization happens during reset
                     clijx.copySlice(buffer[c], slice, zplane);
                 }
                 ImagePlus imp = clijx.pull(slice);
-                formerSliceProcessors[c] = imp.getProcessor();
+                processors[c] = imp.getProcessor();
             }
+            pulled_bytes.addAndGet(slice.getSizeInBytes() * buffer.length);
+            pool.release(slice);
+        }
+        return processors;
+    }
 
-            slice.close();
+    private long getPlaneSizeInBytes() {
+        return buffer[0].getWidth() * buffer[0].getHeight() * buffer[0].getPixelSizeInBytes() * buffer.length;
+    }
 
-            former_z = zplane;
+    /**
+     * Needs to be called when the content of the backing buffers changes, e.g. because they are recomputed.
+     */
+    public void invalidateCache() {
+        synchronized (planes) {
+            cache_generation++;
+            planes.clear();
+            cached_bytes = 0;
         }
-        return (ImageProcessor) formerSliceProcessors[channel].clone();
     }
 
+    /**
+     * @return number of bytes transferred from the GPU for displaying this stack
+     */
+    public long getPulledBytes() {
+        return pulled_bytes.get();
+    }
+
+    public static void setPlaneCacheSizeInBytes(long bytes) {
+        plane_cache_bytes = bytes;
+    }
+
+    public static void setNumberOfPrefetchedPlanes(int number_of_planes) {
+        prefetch_planes = number_of_planes;
+    }
+
+    /**
+     * Protects the images from eviction by the DeviceMemoryBudget until unpin() is called. Images evicted already
+     * come back with the next getBuffer().
+     */
+    public void pin() {
+        DeviceMemoryBudget.getInstance().pin(buffer);
+    }
+
+    public void unpin() {
+        DeviceMemoryBudget.getInstance().unpin(buffer);
+    }
+
+    /**
+     * Returns the image of the given channel on the GPU; it's restored if it was evicted by the DeviceMemoryBudget.
+     */
     public ClearCLBuffer getBuffer(int channel) {
+        DeviceMemoryBudget.getInstance().makeResident(buffer, true);
         return buffer[channel];
     }
 
+    /**
+     * The name of the first image marks whether the stack is up to date. Accessing it, its size or its identity
+     * doesn't bring evicted images back to the GPU.
+     */
+    public String getBufferName() {
+        return buffer[0].getName();
+    }
+
+    public void setBufferName(String name) {
+        buffer[0].setName(name);
+    }
+
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (ClearCLBuffer channel : buffer) {
+            bytes += channel.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    public boolean isBackedBy(ClearCLBuffer channel) {
+        for (ClearCLBuffer candidate : buffer) {
+            if (candidate == channel) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public int getNumberOfChannels() {
         return buffer.length;
     }
@@ -143,30 +331,33 @@ public class CLIJxVirtualStack extends VirtualStack {
                 if (imp.getRoi() != null) {
                     imp = (new Duplicator()).run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), imp.getT(), imp.getT());
                 }
-                ClearCLBuffer[] all = new ClearCLBuffer[imp.getNChannels()];
                 ImageStack imp_stack = imp.getStack();
                 int t = imp.getT() - 1;
+                if (imp.getBitDepth() == 24) {
+                    return pushPlaneByPlane(clijx, imp, t);
+                }
+                ClearCLBuffer[] all = new ClearCLBuffer[imp.getNChannels()];
+                long[] dimensions = new long[]{imp.getWidth(), imp.getHeight(), imp.getNSlices()};
+                NativeTypeEnum type = imp.getBitDepth() == 8 ? NativeTypeEnum.UnsignedByte : imp.getBitDepth() == 16 ? NativeTypeEnum.UnsignedShort : NativeTypeEnum.Float;
+
+                // all planes of a channel are packed into one staging buffer and uploaded in one transfer
                 for (int c = 0; c < imp.getNChannels(); c++) {
-                    all[c] = null;
-                    for (int z = 0; z < imp.getNSlices(); z++) {
-                        /*
-                        z1c1 0 1
-                        z1c2 1 2
-                        z2c1 2 3
-                        z2c1 3 4
-                        */
-                        ImageProcessor processor = imp_stack.getProcessor(t * imp.getNChannels() * imp.getNSlices() + z * imp.getNChannels() + c + 1);
-                        ImagePlus a_slice = new ImagePlus("", processor);
-                        ClearCLBuffer b_slice = clijx.push(a_slice);
-                        if (all[c] == null) {
-                            all[c] = clijx.create(new long[]{b_slice.getWidth(), b_slice.getHeight(), imp.getNSlices()}, b_slice.getNativeType());
-                        }
-                        clijx.copySlice(b_slice, all[c], z);
-                        b_slice.close();
+                    int[] plane_indices = new int[imp.getNSlices()];
+                    for (int z = 0; z < plane_indices.length; z++) {
+                        plane_indices[z] = t * imp.getNChannels() * imp.getNSlices() + z * imp.getNChannels() + c + 1;
                     }
+                    all[c] = StagedUpload.push(clijx, imp_stack, plane_indices, dimensions, type);
                 }
                 return all;
             } else {
+                if (stack instanceof VirtualRawStack && ((VirtualRawStack) stack).isMemoryMapped() && imp.getRoi() == null) {
+                    // stream the current time point straight from the mapped file
+                    try {
+                        return new ClearCLBuffer[]{((VirtualRawStack) stack).push(clijx, imp.getT() - 1)};
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
                 //Roi roi = imp.getRoi();
                 //imp.killRoi();
                 ClearCLBuffer[] buffer = new ClearCLBuffer[]{clijx.pushCurrentZStack(imp)};
@@ -175,4 +366,29 @@ public class CLIJxVirtualStack extends VirtualStack {
             }
         }
     }
+
+    private static ClearCLBuffer[] pushPlaneByPlane(CLIJx clijx, ImagePlus imp, int t) {
+        ClearCLBuffer[] all = new ClearCLBuffer[imp.getNChannels()];
+        ImageStack imp_stack = imp.getStack();
+        for (int c = 0; c < imp.getNChannels(); c++) {
+            all[c] = null;
+            for (int z = 0; z < imp.getNSlices(); z++) {
+                /*
+                z1c1 0 1
+                z1c2 1 2
+                z2c1 2 3
+                z2c1 3 4
+                */
+                ImageProcessor processor = imp_stack.getProcessor(t * imp.getNChannels() * imp.getNSlices() + z * imp.getNChannels() + c + 1);
+                ImagePlus a_slice = new ImagePlus("", processor);
+                ClearCLBuffer b_slice = clijx.push(a_slice);
+                if (all[c] == null) {
+                    all[c] = clijx.create(new long[]{b_slice.getWidth(), b_slice.getHeight(), imp.getNSlices()}, b_slice.getNativeType());
+                }
+                clijx.copySlice(b_slice, all[c], z);
+                b_slice.close();
+            }
+        }
+        return all;
+    }
 }
@@ -0,0 +1,399 @@
+package net.haesleinhuepf.spimcat.io;
+
+import ij.IJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.enums.HostAccessType;
+import net.haesleinhuepf.clij.clearcl.enums.KernelAccessType;
+import net.haesleinhuepf.clij.clearcl.enums.MemAllocMode;
+import net.haesleinhuepf.clijx.CLIJx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * DeviceMemoryBudget
+ * <p>
+ * Keeps the GPU memory held by the images behind CLIJxVirtualStacks, i.e. the results of the assistant's nodes,
+ * below a fraction of the device memory. When the budget is exceeded, the images viewed least recently are copied
+ * to off-heap host memory and released on the device. If the host budget is exhausted as well, images which can
+ * be recomputed are dropped. Evicted images are brought back when their stack is displayed or read by a downstream
+ * node; for dropped ones, the node producing them is asked to recompute. Images pinned by a running refresh or a
+ * plane transfer are never evicted. The buffer objects of evicted images stay in place, closed, so that dimensions, type and name remain
+ * accessible; they are replaced by new buffers on the same context within the same array when restored. Whoever keeps
+ * a reference to a buffer outside the array, e.g. the arguments of a downstream node, gets the current one from
+ * resolve().
+ */
+public class DeviceMemoryBudget {
+
+    private static double device_memory_fraction = 0.6;
+    private static long host_bytes = IJ.maxMemory() / 4;
+    // the most recently used images are never evicted, e.g. the one on screen and the one being computed
+    private static int keep_recent = 2;
+    // images in use by a refresh which takes a while are not evicted either
+    private static long minimum_idle_ms = 2000;
+
+    private static DeviceMemoryBudget instance = null;
+
+    public static synchronized DeviceMemoryBudget getInstance() {
+        if (instance == null) {
+            instance = new DeviceMemoryBudget();
+        }
+        return instance;
+    }
+
+    private static class Entry {
+        final ClearCLBuffer[] buffers;
+        ByteBuffer[] host = null;
+        boolean dropped = false;
+        Runnable recompute = null;
+        // number of users which need the images on the device right now
+        int pins = 0;
+        long last_access_ms = System.currentTimeMillis();
+
+        Entry(ClearCLBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        boolean isResident() {
+            return host == null && !dropped;
+        }
+
+        boolean isClosed() {
+            for (ClearCLBuffer buffer : buffers) {
+                if (buffer.getPeerPointer() == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getSizeInBytes() {
+            long bytes = 0;
+            for (ClearCLBuffer buffer : buffers) {
+                bytes += buffer.getSizeInBytes();
+            }
+            return bytes;
+        }
+    }
+
+    // a buffer which was replaced by a new one when its image was restored
+    private static class Replacement {
+        final Entry entry;
+        final int channel;
+
+        Replacement(Entry entry, int channel) {
+            this.entry = entry;
+            this.channel = channel;
+        }
+    }
+
+    // arrays compare by identity; least recently used first
+    private final LinkedHashMap<ClearCLBuffer[], Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // every buffer belongs to one entry at most; arrays sharing buffers aren't managed twice
+    private final IdentityHashMap<ClearCLBuffer, Entry> owners = new IdentityHashMap<>();
+    private final IdentityHashMap<ClearCLBuffer, Replacement> replaced = new IdentityHashMap<>();
+    private long host_used = 0;
+    private int suspended = 0;
+
+    private DeviceMemoryBudget() {
+    }
+
+    /**
+     * Starts managing the given images and evicts others if the budget is exceeded.
+     */
+    public void register(ClearCLBuffer[] buffers) {
+        synchronized (this) {
+            Entry entry = entries.get(buffers);
+            if (entry != null) {
+                entry.last_access_ms = System.currentTimeMillis();
+                return;
+            }
+            for (ClearCLBuffer buffer : buffers) {
+                if (owners.containsKey(buffer)) {
+                    return;
+                }
+            }
+            entry = new Entry(buffers);
+            entries.put(buffers, entry);
+            for (ClearCLBuffer buffer : buffers) {
+                owners.put(buffer, entry);
+            }
+        }
+        enforce(0);
+    }
+
+    /**
+     * Stops managing the given images, e.g. because they are closed or handed over to the BufferPool.
+     */
+    public synchronized void unregister(ClearCLBuffer[] buffers) {
+        Entry entry = entries.remove(buffers);
+        if (entry == null) {
+            return;
+        }
+        if (entry.host != null) {
+            host_used -= entry.getSizeInBytes();
+        }
+        owners.values().removeIf(owner -> owner == entry);
+        replaced.values().removeIf(replacement -> replacement.entry == entry);
+    }
+
+    /**
+     * Returns the buffer currently holding the image the given buffer held before it was evicted and restored; the
+     * given buffer if it wasn't replaced. The result may be evicted; use makeResident() on the stack's array before
+     * executing kernels on it.
+     */
+    public synchronized ClearCLBuffer resolve(ClearCLBuffer buffer) {
+        Replacement replacement = replaced.get(buffer);
+        return replacement == null ? buffer : replacement.entry.buffers[replacement.channel];
+    }
+
+    /**
+     * The callback is invoked when dropped images are needed again; it must schedule the recomputation of their
+     * content and return without waiting for it, as it's called on whatever thread accesses the images.
+     */
+    public synchronized void setRecomputeCallback(ClearCLBuffer[] buffers, Runnable recompute) {
+        Entry entry = entries.get(buffers);
+        if (entry != null) {
+            entry.recompute = recompute;
+        }
+    }
+
+    /**
+     * Protects the given images from eviction until unpin() is called, e.g. while a refresh reads or writes them.
+     * Pins are counted; every pin() needs its unpin(). Call makeResident() after pinning to be sure the images are on
+     * the device.
+     */
+    public synchronized void pin(ClearCLBuffer[] buffers) {
+        Entry entry = entries.get(buffers);
+        if (entry != null) {
+            entry.pins++;
+        }
+    }
+
+    public synchronized void unpin(ClearCLBuffer[] buffers) {
+        Entry entry = entries.get(buffers);
+        if (entry != null) {
+            entry.pins = Math.max(0, entry.pins - 1);
+            entry.last_access_ms = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized boolean isEvicted(ClearCLBuffer[] buffers) {
+        Entry entry = entries.get(buffers);
+        return entry != null && !entry.isResident();
+    }
+
+    /**
+     * Marks the images as used and allocates them again on the device if they were evicted. With restore_content
+     * set, their former content is uploaded or, if it was dropped, its recomputation is requested; otherwise the
+     * caller is going to overwrite it anyway.
+     *
+     * @return false if the content was dropped and is not there yet
+     */
+    public boolean makeResident(ClearCLBuffer[] buffers, boolean restore_content) {
+        Runnable recompute = null;
+        synchronized (this) {
+            Entry entry = entries.get(buffers);
+            if (entry == null) {
+                return true;
+            }
+            entry.last_access_ms = System.currentTimeMillis();
+            if (entry.isResident()) {
+                return true;
+            }
+        }
+
+        enforce(getSizeInBytes(buffers));
+
+        CLIJx clijx = CLIJx.getInstance();
+        synchronized (clijx) {
+            synchronized (this) {
+                Entry entry = entries.get(buffers);
+                if (entry == null || entry.isResident()) {
+                    return true;
+                }
+                for (int c = 0; c < buffers.length; c++) {
+                    ClearCLBuffer evicted = buffers[c];
+                    ClearCLBuffer buffer = allocate(evicted);
+                    buffer.setName(evicted.getName());
+                    if (entry.host != null && restore_content) {
+                        entry.host[c].rewind();
+                        buffer.readFrom(entry.host[c], true);
+                    }
+                    owners.remove(evicted);
+                    owners.put(buffer, entry);
+                    replaced.put(evicted, new Replacement(entry, c));
+                    buffers[c] = buffer;
+                }
+                if (entry.host != null) {
+                    host_used -= entry.getSizeInBytes();
+                    entry.host = null;
+                }
+                if (entry.dropped && restore_content) {
+                    recompute = entry.recompute;
+                }
+                entry.dropped = false;
+            }
+        }
+
+        if (recompute != null) {
+            System.out.println("DeviceMemoryBudget: requesting recomputation of dropped image " + buffers[0].getName());
+            recompute.run();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts least recently used images until the ones on the device plus the given number of bytes fit into the
+     * budget.
+     */
+    public void enforce(long additional_bytes) {
+        CLIJx clijx = CLIJx.getInstance();
+        long budget = (long) (clijx.getCLIJ().getGPUMemoryInBytes() * device_memory_fraction);
+        synchronized (clijx) {
+            synchronized (this) {
+                if (suspended > 0) {
+                    return;
+                }
+                long resident = additional_bytes;
+                ArrayList<Entry> candidates = new ArrayList<>();
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.isResident()) {
+                        if (entry.isClosed()) { // closed by someone else, e.g. clijx.clear()
+                            iterator.remove();
+                            owners.values().removeIf(owner -> owner == entry);
+                            replaced.values().removeIf(replacement -> replacement.entry == entry);
+                            continue;
+                        }
+                        resident += entry.getSizeInBytes();
+                        candidates.add(entry);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < candidates.size() - keep_recent && resident > budget; i++) {
+                    Entry entry = candidates.get(i);
+                    if (entry.pins == 0 && now - entry.last_access_ms >= minimum_idle_ms && evict(entry)) {
+                        resident -= entry.getSizeInBytes();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases all evictable images on the device which aren't pinned, e.g. after an allocation failed.
+     */
+    public void evictAll() {
+        CLIJx clijx = CLIJx.getInstance();
+        synchronized (clijx) {
+            synchronized (this) {
+                ArrayList<Entry> candidates = new ArrayList<>(entries.values());
+                for (int i = 0; i < candidates.size() - keep_recent; i++) {
+                    if (candidates.get(i).pins == 0 && candidates.get(i).isResident() && !candidates.get(i).isClosed()) {
+                        evict(candidates.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    // caller holds the locks of the CLIJx instance and this
+    private ClearCLBuffer allocate(ClearCLBuffer template) {
+        try {
+            return create(template);
+        } catch (RuntimeException e) {
+            System.out.println("DeviceMemoryBudget: allocation failed, evicting all images: " + e.getMessage());
+            evictAll();
+            return create(template);
+        }
+    }
+
+    // on the context the evicted buffer belonged to, like CLIJ.create() does it
+    private static ClearCLBuffer create(ClearCLBuffer template) {
+        return template.getContext().createBuffer(MemAllocMode.Best, HostAccessType.ReadWrite, KernelAccessType.ReadWrite, 1L, template.getNativeType(), template.getDimensions());
+    }
+
+    // caller holds the locks of the CLIJx instance and this
+    private boolean evict(Entry entry) {
+        long bytes = entry.getSizeInBytes();
+        if (host_used + bytes <= host_bytes && maximumBufferSize(entry) <= Integer.MAX_VALUE) {
+            ByteBuffer[] host = new ByteBuffer[entry.buffers.length];
+            try {
+                for (int c = 0; c < entry.buffers.length; c++) {
+                    host[c] = ByteBuffer.allocateDirect((int) entry.buffers[c].getSizeInBytes()).order(ByteOrder.nativeOrder());
+                    entry.buffers[c].writeTo(host[c], true);
+                }
+                entry.host = host;
+                host_used += bytes;
+            } catch (OutOfMemoryError e) {
+                System.out.println("DeviceMemoryBudget: no host memory for " + entry.buffers[0].getName() + ": " + e.getMessage());
+            }
+        }
+        if (entry.host == null) {
+            if (entry.recompute == null) {
+                return false;
+            }
+            entry.dropped = true;
+        }
+        for (ClearCLBuffer buffer : entry.buffers) {
+            buffer.close();
+        }
+        return true;
+    }
+
+    /**
+     * Eviction is suspended while someone holds references to the buffers outside the stacks, e.g. the optimizer.
+     */
+    public synchronized void suspend() {
+        suspended++;
+    }
+
+    public synchronized void resume() {
+        suspended = Math.max(0, suspended - 1);
+    }
+
+    private static long maximumBufferSize(Entry entry) {
+        long bytes = 0;
+        for (ClearCLBuffer buffer : entry.buffers) {
+            bytes = Math.max(bytes, buffer.getSizeInBytes());
+        }
+        return bytes;
+    }
+
+    private static long getSizeInBytes(ClearCLBuffer[] buffers) {
+        long bytes = 0;
+        for (ClearCLBuffer buffer : buffers) {
+            bytes += buffer.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    public static double getDeviceMemoryFraction() {
+        return device_memory_fraction;
+    }
+
+    /**
+     * @param fraction fraction of the device memory node results may occupy before they are evicted
+     */
+    public static void setDeviceMemoryFraction(double fraction) {
+        device_memory_fraction = fraction;
+    }
+
+    /**
+     * @param bytes off-heap host memory evicted images may occupy; beyond that, images are dropped and recomputed
+     */
+    public static void setHostMemoryInBytes(long bytes) {
+        host_bytes = bytes;
+    }
+
+    public static void setMinimumIdleTime(long milliseconds) {
+        minimum_idle_ms = milliseconds;
+    }
+}
@@ -0,0 +1,96 @@
+package net.haesleinhuepf.spimcat.io;
+
+import ij.ImageStack;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clijx.CLIJx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * StagedUpload
+ * <p>
+ * Uploads planes of an ImageStack as one image by packing them into a direct staging buffer, so that the whole
+ * stack goes to the GPU in one transfer instead of one per plane. A ByteBuffer holds 2 GB at most; larger stacks are
+ * uploaded in chunks of planes which are pasted into the result on the device.
+ */
+public class StagedUpload {
+
+    private static long maximum_chunk_bytes = Integer.MAX_VALUE;
+
+    /**
+     * @param plane_indices stack indices (1-based) of the planes in the order of z
+     * @param dimensions    of the image to create, e.g. 2D for a single plane
+     */
+    public static ClearCLBuffer push(CLIJ2 clij2, ImageStack stack, int[] plane_indices, long[] dimensions, NativeTypeEnum type) {
+        int bytes_per_pixel = type == NativeTypeEnum.UnsignedByte ? 1 : type == NativeTypeEnum.UnsignedShort ? 2 : 4;
+        long plane_bytes = (long) stack.getWidth() * stack.getHeight() * bytes_per_pixel;
+        int depth = plane_indices.length;
+        int planes_per_chunk = (int) Math.max(1, Math.min(depth, maximum_chunk_bytes / plane_bytes));
+
+        ByteBuffer staging = ByteBuffer.allocateDirect((int) (plane_bytes * planes_per_chunk)).order(ByteOrder.nativeOrder());
+        ClearCLBuffer result;
+        synchronized (CLIJx.getInstance()) {
+            result = clij2.create(dimensions, type);
+        }
+        ClearCLBuffer chunk = null;
+        try {
+            for (int z = 0; z < depth; z += planes_per_chunk) {
+                int planes = Math.min(planes_per_chunk, depth - z);
+                staging.clear();
+                for (int p = 0; p < planes; p++) {
+                    pack(stack.getPixels(plane_indices[z + p]), staging, plane_bytes);
+                }
+                staging.flip();
+
+                synchronized (CLIJx.getInstance()) {
+                    if (planes == depth) {
+                        result.readFrom(staging, true);
+                        continue;
+                    }
+                    if (chunk == null || chunk.getDepth() != planes) {
+                        if (chunk != null) {
+                            chunk.close();
+                        }
+                        chunk = clij2.create(new long[]{stack.getWidth(), stack.getHeight(), planes}, type);
+                    }
+                    chunk.readFrom(staging, true);
+                    clij2.paste(chunk, result, 0, 0, z);
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (CLIJx.getInstance()) {
+                result.close();
+            }
+            throw e;
+        } finally {
+            if (chunk != null) {
+                synchronized (CLIJx.getInstance()) {
+                    chunk.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void pack(Object pixels, ByteBuffer staging, long plane_bytes) {
+        if (pixels instanceof byte[]) {
+            staging.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            staging.asShortBuffer().put((short[]) pixels);
+            staging.position((int) (staging.position() + plane_bytes));
+        } else {
+            staging.asFloatBuffer().put((float[]) pixels);
+            staging.position((int) (staging.position() + plane_bytes));
+        }
+    }
+
+    /**
+     * @param bytes size of the staging buffer; stacks larger than that are uploaded in chunks
+     */
+    public static void setMaximumChunkSize(long bytes) {
+        maximum_chunk_bytes = Math.min(bytes, Integer.MAX_VALUE);
+    }
+}
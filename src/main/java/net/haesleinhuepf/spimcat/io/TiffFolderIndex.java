@@ -0,0 +1,162 @@
+package net.haesleinhuepf.spimcat.io;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * TiffFolderIndex
+ * <p>
+ * Index of the TIFF files in a folder: file name, modification time, dimensions and bit depth. It's built by reading
+ * TIFF headers only and stored as a sidecar file in the folder. When the folder is opened again, the sidecar is used
+ * as long as the modification time of the folder didn't change.
+ */
+public class TiffFolderIndex {
+
+    static final String SIDECAR_NAME = ".virtualtifstack.index";
+    private static final String FORMAT = "TiffFolderIndex 2";
+
+    public static class Entry {
+        public final String filename;
+        public final long modified;
+        public final int width;
+        public final int height;
+        public final int depth;
+        public final int bitDepth;
+
+        Entry(String filename, long modified, int width, int height, int depth, int bitDepth) {
+            this.filename = filename;
+            this.modified = modified;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.bitDepth = bitDepth;
+        }
+    }
+
+    private final long folderModified;
+    private final ArrayList<Entry> entries;
+
+    private TiffFolderIndex(long folderModified, ArrayList<Entry> entries) {
+        this.folderModified = folderModified;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the sidecar index of the folder if it's up to date; otherwise builds and stores a new one.
+     */
+    public static TiffFolderIndex of(String foldername) throws IOException {
+        File folder = new File(foldername);
+        long folderModified = folder.lastModified();
+
+        TiffFolderIndex index = read(new File(folder, SIDECAR_NAME), folderModified);
+        if (index != null) {
+            return index;
+        }
+
+        index = build(folder);
+        try {
+            index.write(new File(folder, SIDECAR_NAME));
+            // writing the sidecar modified the folder
+            index = new TiffFolderIndex(folder.lastModified(), index.entries);
+            index.write(new File(folder, SIDECAR_NAME));
+        } catch (IOException e) {
+            System.out.println("Couldn't store index of " + foldername + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    static TiffFolderIndex build(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list folder '" + folder + "'.");
+        }
+        ArrayList<String> filenames = new ArrayList<>();
+        for (File file : files) {
+            String filename = file.getName().toLowerCase();
+            if (file.isFile() && !filename.startsWith(".") && (filename.endsWith(".tif") || filename.endsWith(".tiff"))) {
+                filenames.add(file.getName());
+            }
+        }
+        Collections.sort(filenames);
+
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (String filename : filenames) {
+            entries.add(probe(folder, filename));
+        }
+        return new TiffFolderIndex(folder.lastModified(), entries);
+    }
+
+    /**
+     * Reads the TIFF header of a file without reading its pixels.
+     */
+    static Entry probe(File folder, String filename) throws IOException {
+        String directory = folder.getAbsolutePath() + File.separator;
+        FileInfo[] infos = new TiffDecoder(directory, filename).getTiffInfo();
+        if (infos == null || infos.length == 0) {
+            throw new IOException("'" + filename + "' is not a readable TIFF file.");
+        }
+        FileInfo first = infos[0];
+        // ImageJ TIFFs describe all planes in one IFD
+        int depth = infos.length == 1 ? Math.max(1, first.nImages) : infos.length;
+        return new Entry(filename, new File(folder, filename).lastModified(), first.width, first.height, depth, first.getBytesPerPixel() * 8);
+    }
+
+    static TiffFolderIndex read(File sidecar, long folderModified) {
+        if (!sidecar.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(sidecar))) {
+            if (!FORMAT.equals(reader.readLine())) {
+                return null;
+            }
+            long modified = Long.parseLong(reader.readLine());
+            if (modified != folderModified) {
+                return null;
+            }
+            ArrayList<Entry> entries = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                entries.add(new Entry(columns[0], Long.parseLong(columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]), Integer.parseInt(columns[4]), Integer.parseInt(columns[5])));
+            }
+            return new TiffFolderIndex(modified, entries);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable index " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void write(File sidecar) throws IOException {
+        try (FileWriter writer = new FileWriter(sidecar)) {
+            writer.write(FORMAT + "\n");
+            writer.write(folderModified + "\n");
+            for (Entry entry : entries) {
+                writer.write(entry.filename + "\t" + entry.modified + "\t" + entry.width + "\t" + entry.height + "\t" + entry.depth + "\t" + entry.bitDepth + "\n");
+            }
+        }
+    }
+
+    public ArrayList<Entry> getEntries() {
+        return entries;
+    }
+
+    public ArrayList<String> getFilenames() {
+        ArrayList<String> filenames = new ArrayList<>();
+        for (Entry entry : entries) {
+            filenames.add(entry.filename);
+        }
+        return filenames;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
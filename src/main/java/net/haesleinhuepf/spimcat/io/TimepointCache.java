@@ -0,0 +1,222 @@
+package net.haesleinhuepf.spimcat.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * TimepointCache
+ * <p>
+ * Memory-bounded LRU cache of whole timepoints, shared by the virtual stacks reading time series from folders.
+ * Timepoints are loaded by the thread asking for them or by read-ahead threads; readers of different timepoints
+ * don't block each other and readers of the same timepoint wait for one load only.
+ */
+public class TimepointCache {
+
+    private static long maximum_bytes = IJ.maxMemory() / 4;
+    private static int read_ahead_threads = 2;
+    private static int read_ahead = 3;
+
+    private static TimepointCache instance = null;
+
+    public static synchronized TimepointCache getInstance() {
+        if (instance == null) {
+            instance = new TimepointCache();
+        }
+        return instance;
+    }
+
+    private final LinkedHashMap<Key, ImagePlus> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cached_bytes = 0;
+
+    private final ConcurrentHashMap<Key, Future<ImagePlus>> loading = new ConcurrentHashMap<>();
+
+    private ExecutorService read_ahead_pool = null;
+    private int read_ahead_pool_size = 0;
+
+    private TimepointCache() {
+    }
+
+    /**
+     * Returns the timepoint of the given stack, loading it on the calling thread if it's neither cached nor loading.
+     */
+    public ImagePlus get(Object stack, int timepoint, Callable<ImagePlus> loader) {
+        Key key = new Key(stack, timepoint);
+        synchronized (entries) {
+            ImagePlus imp = entries.get(key);
+            if (imp != null) {
+                return imp;
+            }
+        }
+
+        FutureTask<ImagePlus> task = new FutureTask<>(() -> load(key, loader));
+        Future<ImagePlus> future = loading.putIfAbsent(key, task);
+        if (future == null) {
+            future = task;
+            task.run();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Loads the given timepoint in the background unless it's cached or loading already.
+     */
+    public void readAhead(Object stack, int timepoint, Callable<ImagePlus> loader) {
+        Key key = new Key(stack, timepoint);
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+        }
+        FutureTask<ImagePlus> task = new FutureTask<>(() -> load(key, loader));
+        if (loading.putIfAbsent(key, task) == null) {
+            getReadAheadPool().execute(task);
+        }
+    }
+
+    private ImagePlus load(Key key, Callable<ImagePlus> loader) throws Exception {
+        try {
+            ImagePlus imp = loader.call();
+            if (imp != null) {
+                store(key, imp);
+            }
+            return imp;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    private void store(Key key, ImagePlus imp) {
+        synchronized (entries) {
+            ImagePlus former = entries.put(key, imp);
+            if (former != null) {
+                cached_bytes -= sizeInBytes(former);
+            }
+            cached_bytes += sizeInBytes(imp);
+
+            Iterator<Map.Entry<Key, ImagePlus>> iterator = entries.entrySet().iterator();
+            while (cached_bytes > maximum_bytes && entries.size() > 1 && iterator.hasNext()) {
+                Map.Entry<Key, ImagePlus> entry = iterator.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                cached_bytes -= sizeInBytes(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long sizeInBytes(ImagePlus imp) {
+        return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * Math.max(1, imp.getBitDepth() / 8);
+    }
+
+    private synchronized ExecutorService getReadAheadPool() {
+        if (read_ahead_pool == null || read_ahead_pool_size != read_ahead_threads) {
+            if (read_ahead_pool != null) {
+                read_ahead_pool.shutdown();
+            }
+            read_ahead_pool = Executors.newFixedThreadPool(read_ahead_threads, (runnable) -> {
+                Thread thread = new Thread(runnable, "TimepointCache read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+            read_ahead_pool_size = read_ahead_threads;
+        }
+        return read_ahead_pool;
+    }
+
+    /**
+     * Drops all cached timepoints of the given stack.
+     */
+    public void forget(Object stack) {
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, ImagePlus>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, ImagePlus> entry = iterator.next();
+                if (entry.getKey().stack == stack) {
+                    cached_bytes -= sizeInBytes(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            cached_bytes = 0;
+        }
+    }
+
+    public long getCachedBytes() {
+        synchronized (entries) {
+            return cached_bytes;
+        }
+    }
+
+    public static long getMaximumBytes() {
+        return maximum_bytes;
+    }
+
+    public static void setMaximumBytes(long bytes) {
+        maximum_bytes = bytes;
+    }
+
+    public static int getReadAheadThreads() {
+        return read_ahead_threads;
+    }
+
+    public static void setReadAheadThreads(int threads) {
+        read_ahead_threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return number of timepoints loaded in advance after the displayed one
+     */
+    public static int getReadAhead() {
+        return read_ahead;
+    }
+
+    public static void setReadAhead(int timepoints) {
+        read_ahead = Math.max(0, timepoints);
+    }
+
+    private static class Key {
+        private final Object stack;
+        private final int timepoint;
+
+        private Key(Object stack, int timepoint) {
+            this.stack = stack;
+            this.timepoint = timepoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return stack == other.stack && timepoint == other.timepoint;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(stack) * 31 + timepoint;
+        }
+    }
+}
@@ -6,13 +6,24 @@ import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
 import java.awt.event.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import ij.*;
 import ij.io.*;
 import ij.gui.*;
 import ij.process.*;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
 
 
 /**
@@ -80,52 +91,248 @@ public class VirtualRawStack extends ij.VirtualStack {
 
     @Override
     public ImageProcessor getProcessor(int n) {
-        int stackNumber = n / depth;
-        int sliceNumber = n % depth;
+        if (memoryMapped) {
+            int index = n - 1;
+            return getMappedPlane(index / depth, index % depth);
+        }
+
+        int index = n - 1;
+        int stackNumber = index / depth;
+        int sliceNumber = index % depth;
 
         ImagePlus imp = cachedStack(stackNumber);
-        if (sliceNumber <= imp.getNSlices()) {
-            imp.setZ(sliceNumber);
+        if (sliceNumber >= imp.getNSlices()) {
+            return super.getProcessor(1);
         }
-        return imp.getProcessor();
+        // a processor of its own, so that concurrent viewers don't share the z-position of the cached stack
+        return imp.getStack().getProcessor(sliceNumber + 1);
     }
 
-    private ImagePlus cache = null;
-    private int cacheN = -1;
-    ImagePlus cachedStack(int n) {
-        if (n >= filenames.size() || n < 0) {
-            return new ImagePlus("", super.getProcessor(n));
-        }
-        synchronized (this) {
-            if (cacheN != n) {
-                // load ImagePlus
-                FileInfo fileInfo = new FileInfo();
-                fileInfo.fileName = foldername + filenames.get(n);
-                fileInfo.fileFormat = FileInfo.RAW;
-                if (bitDepth == 8) {
-                    fileInfo.fileType = FileInfo.GRAY8;
-                } else if (bitDepth == 16) {
-                    fileInfo.fileType = FileInfo.GRAY16_UNSIGNED;
+    private boolean memoryMapped = false;
+
+    /**
+     * In memory-mapped mode, planes are read directly from the mapped files instead of loading whole stacks into
+     * the heap.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    // the most recently used mappings; unmapping is left to the garbage collector
+    private static final int MAXIMUM_MAPPINGS = 16;
+    // byte-swapped or windowed uploads go through buffers of this size
+    private static final long UPLOAD_CHUNK_BYTES = 256L * 1024 * 1024;
+    // stack number and window -> mapping
+    private final LinkedHashMap<Long, MappedByteBuffer> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Maps a window of whole planes of a file; FileChannel.map() is limited to 2 GB per mapping. Returns null if the
+     * file ends before the window starts; the mapping is shorter than the window if the file ends within it.
+     */
+    MappedByteBuffer map(int stackNumber, int window) throws IOException {
+        long key = ((long) stackNumber << 32) | window;
+        synchronized (mappings) {
+            MappedByteBuffer mapping = mappings.get(key);
+            if (mapping != null) {
+                return mapping;
+            }
+        }
+        long window_bytes = getPlanesPerWindow() * getPlaneSizeInBytes();
+        long offset = window * window_bytes;
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(Paths.get(foldername + filenames.get(stackNumber)), StandardOpenOption.READ)) {
+            long length = Math.min(channel.size() - offset, Math.min(window_bytes, getStackSizeInBytes() - offset));
+            if (length <= 0) {
+                return null;
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        synchronized (mappings) {
+            mappings.put(key, mapping);
+            Iterator<Long> iterator = mappings.keySet().iterator();
+            while (mappings.size() > MAXIMUM_MAPPINGS) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return mapping;
+    }
+
+    private ByteOrder getByteOrder() {
+        return intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    private long getPlaneSizeInBytes() {
+        return (long) width * height * (bitDepth / 8);
+    }
+
+    private long getStackSizeInBytes() {
+        return getPlaneSizeInBytes() * depth;
+    }
+
+    // planes per mapping and per upload; ByteBuffers are indexed by int
+    private int getPlanesPerWindow() {
+        return (int) Math.max(1, Math.min(depth, Integer.MAX_VALUE / getPlaneSizeInBytes()));
+    }
+
+    /**
+     * Returns a view on the bytes of the given planes with the byte order of the file, or null if the file is too
+     * short. The planes must lie within one window.
+     */
+    private ByteBuffer getMappedBytes(int stackNumber, int sliceNumber, int numberOfSlices) throws IOException {
+        int planes_per_window = getPlanesPerWindow();
+        MappedByteBuffer mapping = map(stackNumber, sliceNumber / planes_per_window);
+        if (mapping == null) {
+            return null;
+        }
+        ByteBuffer bytes = mapping.duplicate();
+        int offset = (int) (getPlaneSizeInBytes() * (sliceNumber % planes_per_window));
+        int length = (int) (getPlaneSizeInBytes() * numberOfSlices);
+        if ((long) offset + length > bytes.capacity()) {
+            return null;
+        }
+        bytes.position(offset);
+        bytes.limit(offset + length);
+        return bytes.slice().order(getByteOrder());
+    }
+
+    ImageProcessor getMappedPlane(int stackNumber, int sliceNumber) {
+        if (stackNumber >= filenames.size() || stackNumber < 0) {
+            return super.getProcessor(1);
+        }
+        ByteBuffer bytes;
+        try {
+            bytes = getMappedBytes(stackNumber, sliceNumber, 1);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return super.getProcessor(1);
+        }
+        if (bytes == null) { // file too short
+            return super.getProcessor(1);
+        }
+
+        if (bitDepth == 8) {
+            byte[] pixels = new byte[width * height];
+            bytes.get(pixels);
+            return new ByteProcessor(width, height, pixels);
+        } else if (bitDepth == 16) {
+            short[] pixels = new short[width * height];
+            bytes.asShortBuffer().get(pixels);
+            return new ShortProcessor(width, height, pixels, null);
+        } else {
+            float[] pixels = new float[width * height];
+            bytes.asFloatBuffer().get(pixels);
+            return new FloatProcessor(width, height, pixels);
+        }
+    }
+
+    /**
+     * Pushes a whole stack from its mapped file to the GPU without creating an ImagePlus. If the byte order of the
+     * file matches the native one, the mapped region is transferred directly; otherwise it is swapped into a direct
+     * buffer chunk by chunk. Stacks larger than 2 GB are transferred in chunks as well; chunks are pasted into the
+     * result on the GPU.
+     */
+    public ClearCLBuffer push(CLIJ2 clij2, int stackNumber) throws IOException {
+        NativeTypeEnum type = bitDepth == 8 ? NativeTypeEnum.UnsignedByte : bitDepth == 16 ? NativeTypeEnum.UnsignedShort : NativeTypeEnum.Float;
+        ClearCLBuffer buffer = clij2.create(new long[]{width, height, depth}, type);
+
+        int planes_per_window = getPlanesPerWindow();
+        boolean swap = getByteOrder() != ByteOrder.nativeOrder() && bitDepth > 8;
+        int planes_per_chunk = !swap && planes_per_window == depth ? depth : (int) Math.max(1, Math.min(planes_per_window, UPLOAD_CHUNK_BYTES / getPlaneSizeInBytes()));
+        ByteBuffer swapped = null;
+        ClearCLBuffer window = null;
+        try {
+            int planes;
+            for (int z = 0; z < depth; z += planes) {
+                // chunks don't cross the border of a mapped window
+                planes = Math.min(planes_per_chunk, Math.min(depth - z, planes_per_window - z % planes_per_window));
+                ByteBuffer bytes = getMappedBytes(stackNumber, z, planes);
+                if (bytes == null) {
+                    throw new IOException("File " + filenames.get(stackNumber) + " is smaller than " + width + "x" + height + "x" + depth + " pixels.");
+                }
+                if (swap) {
+                    if (swapped == null || swapped.capacity() != bytes.capacity()) {
+                        swapped = ByteBuffer.allocateDirect(bytes.capacity()).order(ByteOrder.nativeOrder());
+                    }
+                    swapped.clear();
+                    if (bitDepth == 16) {
+                        swapped.asShortBuffer().put(bytes.asShortBuffer());
+                    } else {
+                        swapped.asFloatBuffer().put(bytes.asFloatBuffer());
+                    }
+                    bytes = swapped;
+                }
+                if (planes == depth) {
+                    buffer.readFrom(bytes, true);
                 } else {
-                    fileInfo.fileType = FileInfo.GRAY32_FLOAT;
+                    if (window == null || window.getDepth() != planes) {
+                        if (window != null) {
+                            window.close();
+                        }
+                        window = clij2.create(new long[]{width, height, planes}, type);
+                    }
+                    window.readFrom(bytes, true);
+                    clij2.paste(window, buffer, 0, 0, z);
                 }
-                fileInfo.intelByteOrder = intelByteOrder;
-                fileInfo.width = width;
-                fileInfo.height = height;
-                fileInfo.nImages = depth;
-
-                ImagePlus imp = Raw.open(fileInfo.fileName, fileInfo);
-                Calibration calibration = imp.getCalibration();
-                calibration.pixelWidth = pixelSizeX;
-                calibration.pixelHeight = pixelSizeY;
-                calibration.pixelDepth = pixelSizeZ;
-                calibration.setUnit(pixelUnit);
-
-                cache = imp;
-                cacheN = n;
+            }
+        } catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        } finally {
+            if (window != null) {
+                window.close();
             }
         }
-        return cache;
+        return buffer;
+    }
+
+    public int getNumberOfStacks() {
+        return numberOfImageStacks;
+    }
+
+    ImagePlus cachedStack(int n) {
+        if (n >= filenames.size() || n < 0) {
+            return new ImagePlus("", super.getProcessor(1));
+        }
+        TimepointCache cache = TimepointCache.getInstance();
+        for (int t = n + 1; t <= n + TimepointCache.getReadAhead() && t < filenames.size(); t++) {
+            final int timepoint = t;
+            cache.readAhead(this, timepoint, () -> load(timepoint));
+        }
+        ImagePlus imp = cache.get(this, n, () -> load(n));
+        if (imp == null) {
+            return new ImagePlus("", super.getProcessor(1));
+        }
+        return imp;
+    }
+
+    private ImagePlus load(int n) {
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.fileName = foldername + filenames.get(n);
+        fileInfo.fileFormat = FileInfo.RAW;
+        if (bitDepth == 8) {
+            fileInfo.fileType = FileInfo.GRAY8;
+        } else if (bitDepth == 16) {
+            fileInfo.fileType = FileInfo.GRAY16_UNSIGNED;
+        } else {
+            fileInfo.fileType = FileInfo.GRAY32_FLOAT;
+        }
+        fileInfo.intelByteOrder = intelByteOrder;
+        fileInfo.width = width;
+        fileInfo.height = height;
+        fileInfo.nImages = depth;
+
+        ImagePlus imp = Raw.open(fileInfo.fileName, fileInfo);
+        Calibration calibration = imp.getCalibration();
+        calibration.pixelWidth = pixelSizeX;
+        calibration.pixelHeight = pixelSizeY;
+        calibration.pixelDepth = pixelSizeZ;
+        calibration.setUnit(pixelUnit);
+        return imp;
     }
 
     @Override
@@ -25,6 +25,7 @@ public class VirtualRawStackOpener implements PlugIn {
     private static int numberOfImageStacks = Integer.MAX_VALUE;
     private static int bitDepth = 16;
     private static boolean intelByteOrder = true;
+    private static boolean memoryMapped = false;
 
     private static double pixelSizeX = 1.0;
     private static double pixelSizeY = 1.0;
@@ -42,6 +43,7 @@ public class VirtualRawStackOpener implements PlugIn {
         gd.addNumericField("Number of images", numberOfImageStacks, 0);
         gd.addChoice("Bit depth", new String[]{"8", "16", "32"}, "" + bitDepth);
         gd.addCheckbox("Intel byte order", intelByteOrder);
+        gd.addCheckbox("Memory mapped", memoryMapped);
         gd.addNumericField("Pixel width", pixelSizeX, 4);
         gd.addNumericField("Pixel height", pixelSizeY, 4);
         gd.addNumericField("Pixel depth", pixelSizeZ, 4);
@@ -55,19 +57,24 @@ public class VirtualRawStackOpener implements PlugIn {
             numberOfImageStacks = (int)gd.getNextNumber();
             bitDepth = Integer.parseInt(gd.getNextChoice());
             intelByteOrder = gd.getNextBoolean();
+            memoryMapped = gd.getNextBoolean();
 
             pixelSizeX = gd.getNextNumber();
             pixelSizeY = gd.getNextNumber();
             pixelSizeZ = gd.getNextNumber();
             pixelUnit = gd.getNextString();
 
-            ImagePlus imp = open(path, width, height, depth, numberOfImageStacks, bitDepth, intelByteOrder, pixelSizeX, pixelSizeY, pixelSizeZ, pixelUnit);
+            ImagePlus imp = open(path, width, height, depth, numberOfImageStacks, bitDepth, intelByteOrder, pixelSizeX, pixelSizeY, pixelSizeZ, pixelUnit, memoryMapped);
             imp.show();
         }
 
     }
 
     public static ImagePlus open(String foldername, int width, int height, int depth, int numberOfImageStacks, int bitDepth, boolean intelByteOrder, double pixelSizeX, double pixelSizeY, double pixelSizeZ, String pixelUnit) {
+        return open(foldername, width, height, depth, numberOfImageStacks, bitDepth, intelByteOrder, pixelSizeX, pixelSizeY, pixelSizeZ, pixelUnit, false);
+    }
+
+    public static ImagePlus open(String foldername, int width, int height, int depth, int numberOfImageStacks, int bitDepth, boolean intelByteOrder, double pixelSizeX, double pixelSizeY, double pixelSizeZ, String pixelUnit, boolean memoryMapped) {
         VirtualRawStack stack = new VirtualRawStack(
                 foldername,
                 width, height, depth,
@@ -77,6 +84,7 @@ public class VirtualRawStackOpener implements PlugIn {
                 pixelSizeX, pixelSizeY, pixelSizeZ,
                 pixelUnit
         );
+        stack.setMemoryMapped(memoryMapped);
         ImagePlus imp = new ImagePlus(foldername, stack);
         //System.out.println("stack size " + imp.getStackSize());
         //System.out.println("stack2 size " + stack.getSize());
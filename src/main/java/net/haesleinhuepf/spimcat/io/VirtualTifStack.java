@@ -6,6 +6,7 @@ import ij.process.ImageProcessor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 
@@ -15,29 +16,18 @@ public class VirtualTifStack extends ij.VirtualStack {
     private final int depth;
     private int numberOfImageStacks;
     public static VirtualTifStack open(String foldername) throws FileNotFoundException {
-        File folder = new File(foldername);
-
-        File aFile = null;
-        int numberOfImageStacks = 0;
-        for (File file : folder.listFiles()) {
-            String filename = file.getName().toLowerCase();
-            if (file.isFile() && (filename.endsWith(".tif") || filename.endsWith(".tiff"))) {
-                numberOfImageStacks++;
-                if (aFile == null) {
-                    aFile = file;
-                }
-            }
+        TiffFolderIndex index;
+        try {
+            index = TiffFolderIndex.of(foldername);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Folder '" + foldername + "' cannot be indexed: " + e.getMessage());
         }
-        if (aFile == null) {
+        if (index.size() == 0) {
             throw new FileNotFoundException("Folder '" + foldername + "' doesn't contain tif files.");
         }
 
-        ImagePlus imp = IJ.openImage(aFile.getAbsolutePath());
-        int width = imp.getWidth();
-        int height = imp.getWidth();
-        int depth = imp.getNSlices();
-
-        return new VirtualTifStack(foldername, width, height, depth, numberOfImageStacks);
+        TiffFolderIndex.Entry first = index.getEntries().get(0);
+        return new VirtualTifStack(foldername, first.width, first.height, first.depth, index.getFilenames());
     }
 
     public VirtualTifStack(String foldername, int width, int height, int depth, int numberOfImageStacks) {
@@ -68,39 +58,62 @@ public class VirtualTifStack extends ij.VirtualStack {
         Collections.sort(filenames);
     }
 
+    private VirtualTifStack(String foldername, int width, int height, int depth, ArrayList<String> filenames) {
+        super(width, height, depth * filenames.size());
+        this.foldername = foldername;
+        if (!this.foldername.endsWith("/")) {
+            this.foldername = this.foldername + "/";
+        }
+
+        this.depth = depth;
+        this.numberOfImageStacks = filenames.size();
+        this.filenames = filenames;
+    }
+
     @Override
     public ImageProcessor getProcessor(int n) {
-        int stackNumber = n / depth / channels;
-        int sliceNumber = n % (depth * channels);
+        int index = n - 1;
+        int stackNumber = index / depth / channels;
+        int sliceNumber = index % (depth * channels);
         int channel = sliceNumber % channels;
 
         //System.out.println("c/s/f " + channel + "/" + sliceNumber + "/" + stackNumber );
 
         ImagePlus imp = cachedStack(stackNumber, channel);
-        if (sliceNumber <= imp.getNSlices()) {
-            imp.setZ(sliceNumber);
+        int z = sliceNumber / channels;
+        if (z >= imp.getNSlices()) {
+            return super.getProcessor(1);
         }
-        return imp.getProcessor();
+        // a processor of its own, so that concurrent viewers don't share the z-position of the cached stack
+        return imp.getStack().getProcessor(z + 1);
     }
 
-    private ImagePlus[] cache = new ImagePlus[1];
-    private int cacheN = -1;
     ImagePlus cachedStack(int n, int c) {
-        if (n >= filenames.size()) {
-            return new ImagePlus("", super.getProcessor(n));
+        if (n >= filenames.size() || n < 0) {
+            return new ImagePlus("", super.getProcessor(1));
         }
-        synchronized (this) {
-            if (cacheN != n) {
-                for (int i = 0; i < channels; i++) {
-                    int pos = (n + i * numberOfImageStacks / channels);
-                    System.out.println("load " + pos);
-                    ImagePlus imp = IJ.openImage(foldername + filenames.get(pos));
-                    cache[i] = imp;
-                }
-                cacheN = n;
-            }
+        TimepointCache cache = TimepointCache.getInstance();
+        for (int t = n + 1; t <= n + TimepointCache.getReadAhead() && t < numberOfImageStacks / channels; t++) {
+            final int position = filePosition(t, c);
+            cache.readAhead(this, position, () -> load(position));
+        }
+        final int position = filePosition(n, c);
+        ImagePlus imp = cache.get(this, position, () -> load(position));
+        if (imp == null) {
+            return new ImagePlus("", super.getProcessor(1));
+        }
+        return imp;
+    }
+
+    private int filePosition(int n, int c) {
+        return n + c * numberOfImageStacks / channels;
+    }
+
+    private ImagePlus load(int position) {
+        if (position >= filenames.size()) {
+            return null;
         }
-        return cache[c];
+        return IJ.openImage(foldername + filenames.get(position));
     }
 
 
@@ -126,7 +139,6 @@ public class VirtualTifStack extends ij.VirtualStack {
     int channels = 1;
     void switchChannelsAndFrames(int channels) {
         this.channels = channels;
-        cache = new ImagePlus[channels];
         /*
         ArrayList<String> formerFilenames = filenames;
         filenames = new ArrayList<String>();
@@ -0,0 +1,24 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// Sums the squared error of one row: inside the mask, the binary result + 1 is compared to the ground truth,
+// outside, 0 is. The row sums end up in dst at (y, z).
+__kernel void masked_squared_error_row_sum(
+    IMAGE_dst_TYPE dst,
+    IMAGE_src_TYPE src,
+    IMAGE_ground_truth_TYPE ground_truth,
+    IMAGE_mask_TYPE mask
+) {
+  const int y = get_global_id(0);
+  const int z = get_global_id(1);
+
+  float sum = 0;
+  for (int x = 0; x < GET_IMAGE_WIDTH(src); x++) {
+    const float reference = (float) READ_ground_truth_IMAGE(ground_truth, sampler, POS_ground_truth_INSTANCE(x, y, z, 0)).x;
+    float value = 0;
+    if ((float) READ_mask_IMAGE(mask, sampler, POS_mask_INSTANCE(x, y, z, 0)).x != 0) {
+      value = (float) READ_src_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x + 1;
+    }
+    sum = sum + (value - reference) * (value - reference);
+  }
+  WRITE_dst_IMAGE(dst, POS_dst_INSTANCE(y, z, 0, 0), CONVERT_dst_PIXEL_TYPE(sum));
+}
@@ -0,0 +1,180 @@
+package net.haesleinhuepf.clijx.assistant;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij2.plugins.GaussianBlur2D;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import net.haesleinhuepf.clijx.assistant.scriptgenerator.GroovyGenerator;
+import net.haesleinhuepf.clijx.assistant.scriptgenerator.MacroGenerator;
+import net.haesleinhuepf.clijx.assistant.scriptgenerator.PyclesperantoGenerator;
+import net.haesleinhuepf.clijx.assistant.services.AssistantGUIPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScriptGenerationBenchmark
+ * <p>
+ * AssistantGUIPluginRegistry.generateScript() for large graphs. Lives in this package because the registry is
+ * package private. The nodes are window-less stand-ins holding a CLIJ plugin, its arguments and source and target
+ * images; they are put into the registry directly so that no heartbeat timer or window is involved. Every node
+ * reads the target of a random earlier node, so the graph branches like real workflows do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptGenerationBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int nodes;
+
+    @Param({"macro", "groovy", "python"})
+    public String language;
+
+    private ArrayList<AssistantGUIPlugin> registered = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        ArrayList<ImagePlus> images = new ArrayList<>();
+        images.add(new ImagePlus("input", new ByteProcessor(1, 1)));
+        for (int i = 0; i < nodes; i++) {
+            ImagePlus source = images.get(random.nextInt(images.size()));
+            ImagePlus target = new ImagePlus("node " + i, new ByteProcessor(1, 1));
+            images.add(target);
+            registered.add(new Node(source, target));
+        }
+        AssistantGUIPluginRegistry.getInstance().registeredPlugins.addAll(registered);
+    }
+
+    @Benchmark
+    public String generateScript() {
+        ScriptGenerator generator;
+        if (language.equals("groovy")) {
+            generator = new GroovyGenerator();
+        } else if (language.equals("python")) {
+            generator = new PyclesperantoGenerator(false);
+        } else {
+            generator = new MacroGenerator();
+        }
+        return AssistantGUIPluginRegistry.getInstance().generateScript(generator);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        AssistantGUIPluginRegistry.getInstance().registeredPlugins.removeAll(registered);
+        registered.clear();
+    }
+
+    private static class Node implements AssistantGUIPlugin {
+        private final ImagePlus source;
+        private final ImagePlus target;
+        private final CLIJMacroPlugin plugin = new GaussianBlur2D();
+        private final Object[] args;
+
+        Node(ImagePlus source, ImagePlus target) {
+            this.source = source;
+            this.target = target;
+            this.args = new Object[]{source, target, 1.0, 2.0};
+        }
+
+        @Override
+        public void run(String command) {
+        }
+
+        @Override
+        public void refresh() {
+        }
+
+        @Override
+        public void setSources(ImagePlus[] imps) {
+        }
+
+        @Override
+        public ImagePlus getSource(int source) {
+            return this.source;
+        }
+
+        @Override
+        public int getNumberOfSources() {
+            return 1;
+        }
+
+        @Override
+        public ImagePlus getTarget() {
+            return target;
+        }
+
+        @Override
+        public void setTargetInvalid() {
+        }
+
+        @Override
+        public void setTargetIsProcessing() {
+        }
+
+        @Override
+        public void setTargetValid() {
+        }
+
+        @Override
+        public CLIJMacroPlugin getCLIJMacroPlugin() {
+            return plugin;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return args;
+        }
+
+        @Override
+        public boolean canManage(CLIJMacroPlugin plugin) {
+            return false;
+        }
+
+        @Override
+        public void setCLIJMacroPlugin(CLIJMacroPlugin plugin) {
+        }
+
+        @Override
+        public String getName() {
+            return plugin.getName();
+        }
+
+        @Override
+        public void refreshDialogFromArguments() {
+        }
+
+        @Override
+        public Workflow getWorkflow() {
+            return null;
+        }
+
+        @Override
+        public String generateScript(ScriptGenerator generator) {
+            return AssistantGUIPluginRegistry.getInstance().generateScript(generator);
+        }
+
+        @Override
+        public void generateScriptFile(ScriptGenerator generator) {
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import ij.IJ;
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clij2.plugins.AddImageAndScalar;
+import net.haesleinhuepf.clij2.plugins.Copy;
+import net.haesleinhuepf.clij2.plugins.GaussianBlur2D;
+import net.haesleinhuepf.clij2.plugins.GaussianBlur3D;
+import net.haesleinhuepf.clij2.plugins.GreaterConstant;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+
+/**
+ * BenchmarkUtilities
+ * <p>
+ * Device selection and synthetic data shared by the benchmarks. The OpenCL device is chosen by the system property
+ * clijx.benchmark.device (part of the device name, e.g. "pthread" for PoCL); without it the default device is used.
+ */
+public class BenchmarkUtilities {
+
+    public static CLIJx getCLIJx() {
+        String device = System.getProperty("clijx.benchmark.device", "");
+        CLIJx clijx = device.length() > 0 ? CLIJx.getInstance(device) : CLIJx.getInstance();
+        System.out.println("Benchmarking on " + clijx.getGPUName());
+        return clijx;
+    }
+
+    /**
+     * Creates a noisy image with a bright blob in the center so that blurring and thresholding have something to do.
+     */
+    public static ImagePlus createImage(int width, int height, int depth, int bitDepth) {
+        ImagePlus imp = IJ.createImage("benchmark", bitDepth + "-bit black", width, height, depth);
+        int value = bitDepth == 8 ? 200 : 1000;
+        for (int z = 1; z <= depth; z++) {
+            imp.getStack().getProcessor(z).setValue(value);
+            imp.getStack().getProcessor(z).fillOval(width / 4, height / 4, width / 2, height / 2);
+            imp.getStack().getProcessor(z).noise(value / 4);
+        }
+        return imp;
+    }
+
+    /**
+     * Starting point -> gaussianBlur2D -> greaterConstant, the typical first steps of a segmentation workflow.
+     */
+    public static Workflow createWorkflow2D(CLIJ2 clij2, ClearCLBuffer input) {
+        // the starting point isn't executed by the workflow; its result is prepared here
+        ClearCLBuffer copy = clij2.create(input);
+        clij2.copy(input, copy);
+        ClearCLBuffer blurred = clij2.create(input.getDimensions(), NativeTypeEnum.Float);
+        ClearCLBuffer binary = clij2.create(input.getDimensions(), NativeTypeEnum.UnsignedByte);
+
+        return createWorkflow(clij2,
+                new AbstractCLIJ2Plugin[]{new Copy(), new GaussianBlur2D(), new GreaterConstant()},
+                new Object[][]{
+                        {input, copy},
+                        {copy, blurred, 2.0, 2.0},
+                        {blurred, binary, 100.0}
+                });
+    }
+
+    /**
+     * Starting point -> gaussianBlur3D -> addImageAndScalar -> greaterConstant; the last two steps are pixel-wise and
+     * can be fused.
+     */
+    public static Workflow createWorkflow3D(CLIJ2 clij2, ClearCLBuffer input) {
+        // the starting point isn't executed by the workflow; its result is prepared here
+        ClearCLBuffer copy = clij2.create(input);
+        clij2.copy(input, copy);
+        ClearCLBuffer blurred = clij2.create(input.getDimensions(), NativeTypeEnum.Float);
+        ClearCLBuffer shifted = clij2.create(input.getDimensions(), NativeTypeEnum.Float);
+        ClearCLBuffer binary = clij2.create(input.getDimensions(), NativeTypeEnum.UnsignedByte);
+
+        return createWorkflow(clij2,
+                new AbstractCLIJ2Plugin[]{new Copy(), new GaussianBlur3D(), new AddImageAndScalar(), new GreaterConstant()},
+                new Object[][]{
+                        {input, copy},
+                        {copy, blurred, 2.0, 2.0, 1.0},
+                        {blurred, shifted, -50.0},
+                        {shifted, binary, 50.0}
+                });
+    }
+
+    private static Workflow createWorkflow(CLIJ2 clij2, AbstractCLIJ2Plugin[] plugins, Object[][] args) {
+        for (int i = 0; i < plugins.length; i++) {
+            plugins[i].setClij(clij2.getCLIJ());
+            plugins[i].setCLIJ2(clij2);
+            plugins[i].setArgs(args[i]);
+        }
+        return new Workflow(plugins, args);
+    }
+
+    /**
+     * Releases all images the workflow writes to; the input is owned by the caller.
+     */
+    public static void release(Workflow workflow) {
+        Object[][] args = workflow.getArgs();
+        for (Object[] step : args) {
+            if (step[1] instanceof ClearCLBuffer) {
+                ((ClearCLBuffer) step[1]).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.optimize.BinaryImageFitnessFunction;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FitnessFunctionBenchmark
+ * <p>
+ * One evaluation of BinaryImageFitnessFunction.value(), i.e. one step of the parameter optimizer: set parameters,
+ * compute the 2D workflow and measure the masked error against a ground truth annotation. The sigma alternates
+ * so that every evaluation actually recomputes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FitnessFunctionBenchmark {
+
+    private ClearCLBuffer input;
+    private ClearCLBuffer ground_truth;
+    private ClearCLBuffer mask;
+    private Workflow workflow;
+    private BinaryImageFitnessFunction function;
+    private double[] parameters;
+    private int count = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        CLIJx clijx = BenchmarkUtilities.getCLIJx();
+        input = clijx.push(BenchmarkUtilities.createImage(1024, 1024, 1, 16));
+        workflow = BenchmarkUtilities.createWorkflow2D(clijx, input);
+
+        // annotation: foreground (2) where the blob is, background (1) around it, not annotated (0) elsewhere
+        ground_truth = clijx.create(input.getDimensions(), NativeTypeEnum.Float);
+        mask = clijx.create(input.getDimensions(), NativeTypeEnum.Float);
+        clijx.set(ground_truth, 0);
+        clijx.drawSphere(ground_truth, 512, 512, 400, 400, 1);
+        clijx.drawSphere(ground_truth, 512, 512, 256, 256, 2);
+        clijx.set(mask, 0);
+        clijx.drawSphere(mask, 512, 512, 400, 400, 1);
+
+        // sigma x, sigma y and threshold are optimized
+        function = new BinaryImageFitnessFunction(clijx, workflow, new int[]{0, 1, 2}, ground_truth, mask);
+        parameters = function.getCurrent();
+    }
+
+    @Benchmark
+    public double value() {
+        count++;
+        parameters[0] = 1 + count % 2;
+        return function.value(parameters);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        function.close();
+        BenchmarkUtilities.release(workflow);
+        ground_truth.close();
+        mask.close();
+        input.close();
+    }
+}
@@ -0,0 +1,58 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import net.haesleinhuepf.clijx.assistant.services.MenuService;
+import net.haesleinhuepf.clijx.assistant.services.SuggestionService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServicesBenchmark
+ * <p>
+ * Construction of MenuService and SuggestionService, which happens when the first assistant window opens. Both are
+ * singletons; the private constructors are called directly so that every invocation builds the menus and parses
+ * the suggestion files anew. The CLIJ plugin services they query are initialized once in setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ServicesBenchmark {
+
+    private Constructor<MenuService> menu_service;
+    private Constructor<SuggestionService> suggestion_service;
+
+    @Setup(Level.Trial)
+    public void setup() throws NoSuchMethodException {
+        MenuService.getInstance();
+        SuggestionService.getInstance();
+
+        menu_service = MenuService.class.getDeclaredConstructor();
+        menu_service.setAccessible(true);
+        suggestion_service = SuggestionService.class.getDeclaredConstructor();
+        suggestion_service.setAccessible(true);
+    }
+
+    @Benchmark
+    public MenuService menuService() throws ReflectiveOperationException {
+        return menu_service.newInstance();
+    }
+
+    @Benchmark
+    public SuggestionService suggestionService() throws ReflectiveOperationException {
+        return suggestion_service.newInstance();
+    }
+}
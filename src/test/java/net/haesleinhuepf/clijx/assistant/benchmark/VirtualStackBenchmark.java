@@ -0,0 +1,97 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import ij.ImagePlus;
+import ij.plugin.RGBStackMerge;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.spimcat.io.CLIJxVirtualStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VirtualStackBenchmark
+ * <p>
+ * Host/device transfers of the assistant's windows: pushing an image with CLIJxVirtualStack.imagePlusToBuffer and
+ * pulling planes with getProcessor, once with an empty plane cache (every plane is pulled from the device) and once
+ * with a warm cache (scrolling back and forth through already visited planes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VirtualStackBenchmark {
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"1", "3"})
+    public int channels;
+
+    private ImagePlus imp;
+    private ImagePlus virtual;
+    private CLIJxVirtualStack stack;
+    private int n = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // CLIJxVirtualStack works on the default instance
+        BenchmarkUtilities.getCLIJx();
+        ImagePlus single = BenchmarkUtilities.createImage(512, 512, 64, bitDepth);
+        if (channels == 1) {
+            imp = single;
+        } else {
+            ImagePlus[] images = new ImagePlus[channels];
+            for (int c = 0; c < channels; c++) {
+                images[c] = single;
+            }
+            imp = RGBStackMerge.mergeChannels(images, true);
+        }
+
+        virtual = CLIJxVirtualStack.bufferToImagePlus(CLIJxVirtualStack.imagePlusToBuffer(imp));
+        stack = (CLIJxVirtualStack) virtual.getStack();
+    }
+
+    @Benchmark
+    public void imagePlusToBuffer() {
+        ClearCLBuffer[] buffers = CLIJxVirtualStack.imagePlusToBuffer(imp);
+        for (ClearCLBuffer buffer : buffers) {
+            buffer.close();
+        }
+    }
+
+    @Benchmark
+    public void getProcessorCold(Blackhole blackhole) {
+        stack.invalidateCache();
+        n = n % stack.getSize() + 1;
+        blackhole.consume(stack.getProcessor(n));
+    }
+
+    @Benchmark
+    public void getProcessorWarm(Blackhole blackhole) {
+        // a handful of planes fits into the cache
+        n = n % Math.min(8, stack.getSize()) + 1;
+        blackhole.consume(stack.getProcessor(n));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int c = 0; c < stack.getNumberOfChannels(); c++) {
+            stack.getBuffer(c).close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.optimize.ElementwiseFusion;
+import net.haesleinhuepf.clijx.assistant.optimize.Workflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WorkflowBenchmark
+ * <p>
+ * Workflow.compute() as called by the optimizer for every parameter set, on a 2D and a 3D pipeline, with and without
+ * fusion of pixel-wise steps. The maximum of the output is read back so that queued kernels are finished; this
+ * reduction is part of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkflowBenchmark {
+
+    @Param({"2D", "3D"})
+    public String pipeline;
+
+    @Param({"true", "false"})
+    public boolean fusion;
+
+    private CLIJx clijx;
+    private ClearCLBuffer input;
+    private Workflow workflow;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        clijx = BenchmarkUtilities.getCLIJx();
+        if (pipeline.equals("2D")) {
+            input = clijx.push(BenchmarkUtilities.createImage(2048, 2048, 1, 16));
+            workflow = BenchmarkUtilities.createWorkflow2D(clijx, input);
+        } else {
+            input = clijx.push(BenchmarkUtilities.createImage(256, 256, 128, 16));
+            workflow = BenchmarkUtilities.createWorkflow3D(clijx, input);
+        }
+        ElementwiseFusion.setEnabled(fusion);
+    }
+
+    @Benchmark
+    public double compute() {
+        workflow.compute();
+        return clijx.getMaximumOfAllPixels(workflow.getOutput());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ElementwiseFusion.setEnabled(true);
+        BenchmarkUtilities.release(workflow);
+        input.close();
+    }
+}
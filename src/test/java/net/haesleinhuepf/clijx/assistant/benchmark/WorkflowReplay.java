@@ -0,0 +1,219 @@
+package net.haesleinhuepf.clijx.assistant.benchmark;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.assistant.batch.RecordedWorkflow;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * WorkflowReplay
+ * <p>
+ * Runs a workflow exported with "Export workflow as groovy (for re-loading)" headlessly on synthetic nuclei volumes
+ * of increasing size and writes a JSON report with per-node and total latency (median of several repetitions),
+ * peak device memory held by the workflow's images and peak host heap. For every node, the report contains a
+ * scaling exponent: time grows with voxel count to the power of this exponent between the smallest and the largest
+ * size which could be processed. Values clearly above 1 indicate super-linear scaling.
+ * <p>
+ * Usage: WorkflowReplay workflow.groovy [report.json] [WxHxD ...]
+ * The OpenCL device is chosen with -Dclijx.benchmark.device=..., see BenchmarkUtilities.
+ */
+public class WorkflowReplay {
+
+    private static final String[] DEFAULT_SIZES = {"256x256x256", "512x512x256", "512x512x512", "1024x1024x512", "2048x2048x512"};
+    private static final int REPETITIONS = 3;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: WorkflowReplay workflow.groovy [report.json] [WxHxD ...]");
+            return;
+        }
+        File workflow_file = new File(args[0]);
+        File report_file = new File(args.length > 1 ? args[1] : "workflow-replay.json");
+        String[] sizes = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : DEFAULT_SIZES;
+
+        CLIJx clijx = BenchmarkUtilities.getCLIJx();
+        RecordedWorkflow workflow = RecordedWorkflow.read(workflow_file);
+        System.out.println("Replaying " + workflow.getSteps().size() + " steps from " + workflow_file);
+
+        ArrayList<Run> runs = new ArrayList<>();
+        for (String size : sizes) {
+            String[] parts = size.split("x");
+            long[] dimensions = {Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+            Run run = replay(clijx, workflow, dimensions);
+            runs.add(run);
+            System.out.println(size + ": " + (run.error != null ? run.error : String.format("%.1f ms", run.total_ms)));
+            clijx.clear();
+        }
+
+        try (FileWriter writer = new FileWriter(report_file)) {
+            writer.write(toJSON(clijx, workflow_file, workflow, runs));
+        }
+        System.out.println("Report written to " + report_file);
+    }
+
+    private static class Run {
+        long[] dimensions;
+        double total_ms;
+        LinkedHashMap<String, Double> node_ms = new LinkedHashMap<>();
+        long peak_device_bytes;
+        long peak_heap_bytes;
+        String error;
+    }
+
+    private static Run replay(CLIJx clijx, RecordedWorkflow workflow, long[] dimensions) {
+        Run run = new Run();
+        run.dimensions = dimensions;
+
+        ClearCLBuffer input = null;
+        try {
+            input = createNuclei(clijx, dimensions);
+
+            // first repetition is warm-up: kernel compilation, allocation
+            ArrayList<LinkedHashMap<String, Double>> repetitions = new ArrayList<>();
+            for (int r = 0; r <= REPETITIONS; r++) {
+                LinkedHashMap<String, Double> node_ms = new LinkedHashMap<>();
+                long[] peaks = {input.getSizeInBytes(), 0};
+                LinkedHashMap<String, ClearCLBuffer> images = workflow.execute(clijx, new ClearCLBuffer[]{input}, (step, result, duration_ns) -> {
+                    node_ms.put(step.getTarget() + " " + step.getName(), duration_ns / 1e6);
+                    if (result != null) {
+                        peaks[0] += result.getSizeInBytes();
+                    }
+                    Runtime runtime = Runtime.getRuntime();
+                    peaks[1] = Math.max(peaks[1], runtime.totalMemory() - runtime.freeMemory());
+                });
+                for (ClearCLBuffer buffer : images.values()) {
+                    if (buffer != input) {
+                        buffer.close();
+                    }
+                }
+                if (r > 0) {
+                    repetitions.add(node_ms);
+                }
+                run.peak_device_bytes = Math.max(run.peak_device_bytes, peaks[0]);
+                run.peak_heap_bytes = Math.max(run.peak_heap_bytes, peaks[1]);
+            }
+
+            for (String node : repetitions.get(0).keySet()) {
+                double[] values = new double[repetitions.size()];
+                for (int r = 0; r < values.length; r++) {
+                    values[r] = repetitions.get(r).get(node);
+                }
+                run.node_ms.put(node, median(values));
+            }
+            double[] totals = new double[repetitions.size()];
+            for (int r = 0; r < totals.length; r++) {
+                for (double value : repetitions.get(r).values()) {
+                    totals[r] += value;
+                }
+            }
+            run.total_ms = median(totals);
+        } catch (Throwable e) {
+            // typically the largest sizes exceed device memory
+            run.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Bright, blurred spheres of varying size on a dim background, roughly one nucleus per 32^3 voxels.
+     */
+    private static ClearCLBuffer createNuclei(CLIJx clijx, long[] dimensions) {
+        Random random = new Random(42);
+        ClearCLBuffer spheres = clijx.create(dimensions, NativeTypeEnum.Float);
+        clijx.set(spheres, 100);
+        long count = dimensions[0] * dimensions[1] * dimensions[2] / (32 * 32 * 32);
+        for (long i = 0; i < count; i++) {
+            float radius = 4 + random.nextFloat() * 8;
+            clijx.drawSphere(spheres,
+                    random.nextFloat() * dimensions[0], random.nextFloat() * dimensions[1], random.nextFloat() * dimensions[2],
+                    radius, radius, radius, 500 + random.nextFloat() * 500);
+        }
+        ClearCLBuffer nuclei = clijx.create(dimensions, NativeTypeEnum.UnsignedShort);
+        clijx.gaussianBlur3D(spheres, nuclei, 2, 2, 2);
+        spheres.close();
+        return nuclei;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static String toJSON(CLIJx clijx, File workflow_file, RecordedWorkflow workflow, ArrayList<Run> runs) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"workflow\": \"").append(escape(workflow_file.getName())).append("\",\n");
+        json.append("  \"device\": \"").append(escape(clijx.getGPUName())).append("\",\n");
+        json.append("  \"repetitions\": ").append(REPETITIONS).append(",\n");
+        json.append("  \"runs\": [\n");
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            json.append("    {\"dimensions\": ").append(Arrays.toString(run.dimensions))
+                    .append(", \"voxels\": ").append(voxels(run));
+            if (run.error != null) {
+                json.append(", \"error\": \"").append(escape(run.error)).append("\"}");
+            } else {
+                json.append(", \"total_ms\": ").append(run.total_ms)
+                        .append(", \"peak_device_bytes\": ").append(run.peak_device_bytes)
+                        .append(", \"peak_heap_bytes\": ").append(run.peak_heap_bytes)
+                        .append(", \"nodes\": {");
+                boolean first = true;
+                for (String node : run.node_ms.keySet()) {
+                    json.append(first ? "" : ", ").append("\"").append(escape(node)).append("\": ").append(run.node_ms.get(node));
+                    first = false;
+                }
+                json.append("}}");
+            }
+            json.append(i < runs.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+
+        // scaling exponent between smallest and largest successful run
+        Run smallest = null;
+        Run largest = null;
+        for (Run run : runs) {
+            if (run.error == null) {
+                if (smallest == null || voxels(run) < voxels(smallest)) {
+                    smallest = run;
+                }
+                if (largest == null || voxels(run) > voxels(largest)) {
+                    largest = run;
+                }
+            }
+        }
+        json.append("  \"scaling_exponents\": {");
+        if (smallest != null && voxels(largest) > voxels(smallest)) {
+            double voxel_ratio = Math.log((double) voxels(largest) / voxels(smallest));
+            boolean first = true;
+            for (String node : smallest.node_ms.keySet()) {
+                double exponent = Math.log(largest.node_ms.get(node) / smallest.node_ms.get(node)) / voxel_ratio;
+                json.append(first ? "" : ", ").append("\"").append(escape(node)).append("\": ").append(Double.isFinite(exponent) ? "" + Math.round(exponent * 1000) / 1000.0 : "null");
+                first = false;
+            }
+        }
+        json.append("}\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static long voxels(Run run) {
+        return run.dimensions[0] * run.dimensions[1] * run.dimensions[2];
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}